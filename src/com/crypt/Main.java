@@ -2,18 +2,48 @@ package com.crypt;
 
 import com.crypt.algorithms.*;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
 import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.security.InvalidParameterException;
 import java.security.KeyPair;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Main {
 
+    /**
+     * Encrypts or decrypts one file, throwing whatever stopped it
+     */
+    private interface FileCrypt {
+        void crypt(File f) throws IOException, GeneralSecurityException, InterruptedException;
+    }
+
     /**
      * The main entry point of the application
      */
     public static void main(String[] args) {
+        if (args.length > 1 && args[0].toUpperCase().equals("-GENERATE")) {
+            generateKeys(args);
+            return;
+        }
+
         switch (args.length) {
             case 0:
                 // If user supplies no arguments, show basic usage and option for more information
@@ -29,8 +59,21 @@ public class Main {
                             "-dry will run the program, " +
                             "but not execute any of the encryption algorithms.\n" +
                             "Input can be specified using -i or -input followed by the file or folder.\n" +
+                            "-input - reads standard input and writes the result to standard output, without " +
+                            "prompting. Streams keep the IV or key first, and AES streams always use GCM.\n" +
                             "RSA and ECC key value pairs can be generated via the -generate parameter. See " +
-                            "-help-generate for more information.\n");
+                            "-help-generate for more information.\n" +
+                            "-mode CBC, CTR or GCM selects the AES mode of operation. Default is CBC. " +
+                            "CTR and GCM encrypt large files on all cores, GCM also detects tampering.\n" +
+                            "For Blowfish, -mode selects ECB, CBC or CTR. Default is CBC. CTR encrypts on all cores.\n" +
+                            "Folders are searched recursively. Symbolic links are skipped unless -follow-links is " +
+                            "given, and -exclude followed by a pattern such as *.log or build/** skips matching " +
+                            "files and folders. -exclude can be repeated.\n" +
+                            "-jobs N processes N files at the same time, -jobs auto one per core. Files are " +
+                            "confirmed first, and a summary is printed at the end.\n" +
+                            "-inplace makes AES (CBC or CTR) overwrite the file directly instead of writing a copy.\n" +
+                            "-pipeline makes RC4 generate its keystream on a separate thread during file I/O, and " +
+                            "makes Blowfish (ECB or CBC) overlap its reads and writes with the cipher.\n");
 
                     System.out.printf("When encrypting files, the extension %1$s will be appended to the file name. " +
                             "(test.txt%1$s)\n", Utilities.ENCRYPTED_EXTENSION);
@@ -50,96 +93,91 @@ public class Main {
                             "Typing -generate RSA will give you a RSA public and private key pair.\n" +
                             "You can specify an key size in bits (-generate RSA 2048). Default is 1024.\n" +
                             "Typing -generate ECC will give you an ECC public and private key pair." +
-                            "Please note that ECC only supports 256-bit keys.\n");
+                            "Please note that ECC only supports 256-bit keys.\n" +
+                            "-count N generates N key pairs on all cores (-generate RSA 4096 -count 100).\n");
 
                 } else System.out.println("Not enough parameters. Did you mean -help?");
                 break;
             case 2:
             case 3:
-                if (args[0].toUpperCase().equals("-GENERATE")) {
-                    if (args[1].toUpperCase().equals("RSA")) {
-                        KeyPair kp;
-
-                        if (args.length > 2) {
-                            kp = RSA.generateRSAPair(Integer.parseInt(args[2]));
+                System.out.println("Did you mean -generate?");
+                break;
+            default:
+                // Find -input or -i argument in args
+                File input = null;
+                boolean stream = false;
+                for (int i = 0; i < args.length; i++) {
+                    if (args[i].matches("-INPUT|-I|-i|-input")) {
+                        if (args.length - 1 == i) {
+                            System.out.println("No file specified for input parameter.");
+                            System.exit(-1);
+                        } else if (args[i + 1].equals("-")) {
+                            // Standard input to standard output
+                            stream = true;
                         } else {
-                            kp = RSA.generateRSAPair(1024);
-                        }
-
-                        if (kp == null) {
-                            System.out.println("Could not generate keys.");
-                            return;
+                            input = new File(args[i + 1]);
                         }
+                        break;
+                    }
+                }
 
-                        System.out.println("Here are your RSA Keys:\nPrivate Key in PKCS#8:");
-                        System.out.println(Base64.getEncoder().encodeToString(kp.getPrivate().getEncoded()));
-                        System.out.println("Public Key in X.509:");
-                        System.out.println(Base64.getEncoder().encodeToString(kp.getPublic().getEncoded()));
-                    } else if (args[1].toUpperCase().equals("ECC")) {
-                        KeyPair kp = ECC.generateECCPair();
+                // With -input - standard output carries the result, so messages go to standard error
+                PrintStream messages = stream ? System.err : System.out;
 
-                        if (kp == null) {
-                            System.out.println("Could not generate keys.");
-                            return;
-                        }
-
-                        System.out.println("Here are your ECC Keys:\nPrivate Key in PKCS#8:");
-                        System.out.println(Base64.getEncoder().encodeToString(kp.getPrivate().getEncoded()));
-                        System.out.println("Public Key in X.509:");
-                        System.out.println(Base64.getEncoder().encodeToString(kp.getPublic().getEncoded()));
-                    }
-                } else System.out.println("Did you mean -generate?");
-                break;
-            default:
                 // Encrypt or Decrypt
                 boolean encrypt = false;
                 if (Arrays.stream(args).noneMatch(str -> str.toUpperCase().equals("-DECRYPT"))) {
                     if (Arrays.stream(args).anyMatch(str -> str.toUpperCase().equals("-ENCRYPT"))) {
                         encrypt = true;
                     } else {
-                        System.out.println("Encryption or decryption was not specified.");
+                        messages.println("Encryption or decryption was not specified.");
                         System.exit(-1);
                     }
                 }
 
-                // Find -input or -i argument in args
-                List<File> files = new ArrayList<>();
-                for (int i = 0; i < args.length; i++) {
-                    if (args[i].matches("-INPUT|-I|-i|-input")) {
-                        if (args.length - 1 == i) {
-                            System.out.println("No file specified for input parameter.");
-                            System.exit(-1);
-                        } else {
-                            // Recursively search supplied path for files.
-                            files = Utilities.fileOrFolder(new File(args[i + 1]));
+                if (stream || (input != null && input.exists())) {
+                    Scanner in = new Scanner(System.in);
+
+                    // If true, none of the algorithms will run, but will run through each file anyway.
+                    boolean dry = Arrays.stream(args).anyMatch(str -> str.toUpperCase().equals("-DRY"));
+
+                    // If true, AES transforms each file where it lies instead of writing a new file.
+                    boolean inPlace = Arrays.stream(args).anyMatch(str -> str.toUpperCase().equals("-INPLACE"));
+
+                    // If true, RC4 generates its keystream on a separate thread while the file is read and written.
+                    boolean pipeline = Arrays.stream(args).anyMatch(str -> str.toUpperCase().equals("-PIPELINE"));
+
+                    // Symbolic links found in folders are skipped unless -follow-links is given
+                    FileWalker.Symlinks symlinks =
+                            Arrays.stream(args).anyMatch(str -> str.toUpperCase().equals("-FOLLOW-LINKS")) ?
+                                    FileWalker.Symlinks.FOLLOW : FileWalker.Symlinks.SKIP;
+
+                    // Files and folders matching any -exclude pattern are skipped
+                    List<String> excludes = new ArrayList<>();
+                    for (int i = 0; i < args.length - 1; i++)
+                        if (args[i].toUpperCase().equals("-EXCLUDE")) excludes.add(args[i + 1]);
 
-                            // Prevents the application from encrypting itself.
+                    // If true, the user is not asked to confirm each file.
+                    boolean force = Arrays.stream(args).anyMatch(str ->
+                            str.toUpperCase().equals("-FORCE") || str.toUpperCase().equals("-F"));
+
+                    // Files processed at the same time. -jobs auto uses one per core.
+                    int jobs = 1;
+                    for (int i = 0; i < args.length; i++) {
+                        if (args[i].toUpperCase().equals("-JOBS")) {
                             try {
-                                File executable = new File(Main.class.getProtectionDomain().
-                                        getCodeSource().getLocation().toURI().getPath());
-
-                                for (File f : files) {
-                                    System.out.println(f.getAbsolutePath());
-                                    if (f.getCanonicalPath().equals(executable.getCanonicalPath())) {
-                                        files.remove(f);
-                                        break;
-                                    }
-                                }
-                            } catch (URISyntaxException | IOException e) {
-                                e.printStackTrace();
-                                System.out.println("Could not get path of executable.");
+                                jobs = args[i + 1].toUpperCase().equals("AUTO") ?
+                                        Runtime.getRuntime().availableProcessors() : Integer.parseInt(args[i + 1]);
+                            } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+                                jobs = 0;
+                            }
+                            if (jobs < 1) {
+                                messages.println("-jobs must be followed by a positive number or auto.");
                                 System.exit(-1);
                             }
                             break;
                         }
                     }
-                }
-
-                if (files.size() > 0) {
-                    Scanner in = new Scanner(System.in);
-
-                    // If true, none of the algorithms will run, but will run through each file anyway.
-                    boolean dry = Arrays.stream(args).anyMatch(str -> str.toUpperCase().equals("-DRY"));
 
                     // Find algorithm type
                     String algorithm = "";
@@ -147,7 +185,7 @@ public class Main {
                     for (int i = 0; i < args.length; i++) {
                         if (args[i].toUpperCase().matches("-XOR|-AES|-RC4|-BLOWFISH|-RSA|-ECC")) {
                             if (i == args.length - 1) {
-                                System.out.println("Algorithm selected but missing parameters.");
+                                messages.println("Algorithm selected but missing parameters.");
                                 System.exit(-1);
                             }
                             algorithm = args[i].toUpperCase();
@@ -157,85 +195,117 @@ public class Main {
                     }
 
                     if (algorithm.isEmpty()) {
-                        System.out.println("An invalid algorithm was specified." +
+                        messages.println("An invalid algorithm was specified." +
                                 " See --help-algos for more info.");
                         System.exit(-1);
                     }
 
-                    int prompt;
-                    for (File f : files) {
-                        if (f.isDirectory()) {
-                            System.out.printf("The folder %s is about to be %s%n", f.getName(),
-                                    encrypt ? "encrypted." : "decrypted.");
-                            continue;
-                        } else {
-                            System.out.printf("The file %s is about to be %s%n",
-                                    f.getName(), encrypt ? "encrypted." : "decrypted.");
+                    // Find optional AES or Blowfish mode of operation
+                    AES.Mode aesMode = AES.Mode.CBC;
+                    BLOWFISH.Mode blowfishMode = BLOWFISH.Mode.CBC;
+                    for (int i = 0; i < args.length; i++) {
+                        if (args[i].toUpperCase().equals("-MODE")) {
+                            if (i == args.length - 1) {
+                                messages.println("Mode selected but not specified.");
+                                System.exit(-1);
+                            }
+                            boolean blowfish = algorithm.equals("-BLOWFISH");
+                            try {
+                                if (blowfish) blowfishMode = BLOWFISH.Mode.valueOf(args[i + 1].toUpperCase());
+                                else aesMode = AES.Mode.valueOf(args[i + 1].toUpperCase());
+                            } catch (IllegalArgumentException e) {
+                                messages.println("An invalid mode was specified. Supported modes are " +
+                                        Arrays.toString(blowfish ? BLOWFISH.Mode.values() : AES.Mode.values()) + ".");
+                                System.exit(-1);
+                            }
+                            break;
                         }
+                    }
 
-                        // To prevent accidental encryption/decryption, the user will be prompted before executing
-                        // any algorithm for EACH file.
-                        if (Arrays.stream(args).noneMatch(str ->
-                                str.toUpperCase().equals("-FORCE") || str.toUpperCase().equals("-F"))) {
-                            System.out.println("Are you sure you want to continue? (YES/Y)." +
-                                    " (C) will skip this file. Otherwise program will exit.");
+                    if (stream) {
+                        String key = args[algoIndex];
+                        keyRequirements(algorithm, key, messages);
 
-                            prompt = declinePrompt(in);
+                        if (dry) {
+                            messages.println("-dry was selected. Skipping algorithm execution.");
+                            return;
+                        }
 
-                            if (prompt == 0) System.exit(-1);
-                            else if (prompt == -1) continue;
+                        try {
+                            cryptStream(algorithm.substring(1), key, args, algoIndex, encrypt, blowfishMode);
+                        } catch (IOException | GeneralSecurityException e) {
+                            e.printStackTrace();
+                            messages.println("Could not " + (encrypt ? "encrypt" : "decrypt") + " the stream.");
+                            System.exit(-1);
+                        }
+                        return;
+                    }
 
-                            if (f.getName().endsWith(Utilities.ENCRYPTED_EXTENSION) && encrypt) {
-                                System.out.printf("This file already has the %s extension. Are you sure you want to" +
-                                        " continue? (YES/Y). (C) will skip this file. " +
-                                        "Otherwise program will exit.", Utilities.ENCRYPTED_EXTENSION);
+                    File executable = null;
+                    try {
+                        executable = new File(Main.class.getProtectionDomain().
+                                getCodeSource().getLocation().toURI().getPath());
+                    } catch (URISyntaxException e) {
+                        e.printStackTrace();
+                        System.out.println("Could not get path of executable.");
+                        System.exit(-1);
+                    }
 
-                                prompt = declinePrompt(in);
-                                if (prompt == 0) System.exit(-1);
-                                else if (prompt == -1) continue;
-                            }
-                        }
+                    String key = args[algoIndex];
+                    keyRequirements(algorithm, key);
+
+                    // The same settings for every file, whichever thread it runs on
+                    String cipher = algorithm.substring(1);
+                    int keyIndex = algoIndex;
+                    boolean encryption = encrypt;
+                    AES.Mode aes = aesMode;
+                    BLOWFISH.Mode blowfish = blowfishMode;
+                    // Concurrent jobs already keep every core busy, so each file runs on its own worker thread
+                    int parallelism = jobs > 1 ? 1 : ForkJoinPool.getCommonPoolParallelism();
+                    FileCrypt crypt = file -> cryptFile(file, cipher, key, args, keyIndex, encryption, inPlace,
+                            pipeline, aes, blowfish, parallelism);
+
+                    // Files are handed out while the rest of the folder is still being searched
+                    FileWalker walker = new FileWalker(input.toPath(), symlinks, excludes,
+                            FileWalker.DEFAULT_CAPACITY).start();
+
+                    File f;
+                    try {
+                        if (jobs > 1) {
+                            cryptConcurrently(walker, executable, in, jobs, force, dry, encrypt, crypt);
+                        } else {
+                            while ((f = walker.next()) != null) {
+                                if (isExecutable(f, executable)) continue;
 
-                        String key = args[algoIndex];
+                                System.out.printf("The file %s is about to be %s%n",
+                                        f.getName(), encrypt ? "encrypted." : "decrypted.");
 
-                        keyRequirements(algorithm, key);
+                                if (!force && !confirm(f, encrypt, in)) continue;
 
-                        if (dry) {
-                            System.out.println("-dry was selected. Skipping algorithm execution.");
-                            continue;
-                        }
+                                if (dry) {
+                                    System.out.println("-dry was selected. Skipping algorithm execution.");
+                                    continue;
+                                }
 
-                        if (algorithm.startsWith("-")) algorithm = algorithm.substring(1);
-                        if (Utilities.isSymmetric(algorithm)) {
-                            switch (algorithm) {
-                                case "AES":
-                                    AES.crypt(f.getAbsolutePath(), key.getBytes(), encrypt);
-                                    break;
-                                case "BLOWFISH":
-                                    BLOWFISH.crypt(f.getAbsolutePath(), key.getBytes(), encrypt, BLOWFISH.Mode.CBC,
-                                            null);
-                                    break;
-                                case "RC4":
-                                    RC4.crypt(f.getAbsolutePath(), key.getBytes(), encrypt);
-                                    break;
-                                case "XOR":
-                                    XOR.crypt(f.getAbsolutePath(), key.getBytes(), encrypt);
-                                    break;
-                                default:
-                                    throw new IllegalArgumentException();
-                            }
-                        } else {
-                            // TODO
-                            if (algorithm.equals("RSA")) {
-                                RSA.crypt(f.getAbsolutePath(), key.getBytes(), encrypt);
-                            } else if (algorithm.equals("ECC")) {
-                                String publicKey = args[algoIndex + 1];
-                                ECC.crypt(f.getAbsolutePath(), key.getBytes(), publicKey.getBytes(), encrypt);
+                                try {
+                                    crypt.crypt(f);
+                                } catch (IOException | GeneralSecurityException e) {
+                                    e.printStackTrace();
+                                    System.out.printf("%s could not be %s%n", f.getName(),
+                                            encrypt ? "encrypted." : "decrypted.");
+                                    continue;
+                                }
+
+                                System.out.printf("%s was successfully %s ", f.getName(),
+                                        encrypt ? "encrypted." : "decrypted.");
                             }
                         }
-
-                        System.out.printf("%s was successfully %s ", f.getName(),
-                                encrypt ? "encrypted." : "decrypted.");
+                    } catch (IOException | InterruptedException e) {
+                        e.printStackTrace();
+                        System.out.println("Could not search " + input + ".");
+                        System.exit(-1);
+                    } finally {
+                        walker.close();
                     }
                 } else {
                     System.out.println("The file/folder does not exist.");
@@ -247,11 +317,292 @@ public class Main {
         }
     }
 
+    /**
+     * Encrypts or decrypts a file with the algorithm selected on the command line. Nothing is printed, a failure
+     * is thrown and the original file is left as it was (except by AES in place).
+     * @param parallelism Threads a single file may use
+     */
+    private static void cryptFile(File f, String algorithm, String key, String[] args, int algoIndex,
+                                  boolean encrypt, boolean inPlace, boolean pipeline,
+                                  AES.Mode aesMode, BLOWFISH.Mode blowfishMode, int parallelism)
+            throws IOException, GeneralSecurityException, InterruptedException {
+        if (Utilities.isSymmetric(algorithm)) {
+            switch (algorithm) {
+                case "AES":
+                    if (inPlace)
+                        AES.cryptFileInPlace(f.getAbsolutePath(), key.getBytes(), encrypt, aesMode);
+                    else
+                        AES.cryptFile(f.getAbsolutePath(), key.getBytes(), encrypt, aesMode, parallelism);
+                    break;
+                case "BLOWFISH":
+                    if (pipeline && blowfishMode != BLOWFISH.Mode.CTR)
+                        BLOWFISH.cryptFilePipelined(f.getAbsolutePath(), key.getBytes(), encrypt, blowfishMode, null);
+                    else
+                        BLOWFISH.cryptFile(f.getAbsolutePath(), key.getBytes(), encrypt, blowfishMode, null,
+                                parallelism);
+                    break;
+                case "RC4":
+                    if (pipeline)
+                        RC4.cryptFilePipelined(f.getAbsolutePath(), key.getBytes(), encrypt);
+                    else
+                        RC4.cryptFile(f.getAbsolutePath(), key.getBytes(), encrypt);
+                    break;
+                case "XOR":
+                    XOR.cryptFile(f.getAbsolutePath(), key.getBytes(), encrypt, parallelism);
+                    break;
+                default:
+                    throw new IllegalArgumentException();
+            }
+        } else {
+            // TODO
+            if (algorithm.equals("RSA")) {
+                RSA.cryptFile(f.getAbsolutePath(), key.getBytes(), encrypt);
+            } else if (algorithm.equals("ECC")) {
+                String publicKey = args[algoIndex + 1];
+                ECC.cryptFile(f.getAbsolutePath(), key.getBytes(), publicKey.getBytes(), encrypt);
+            }
+        }
+    }
+
+    /**
+     * Runs up to jobs files at the same time. Unless forced, every file is confirmed before any of them start,
+     * so no prompt waits while files are being processed. Output is a summary printed once every file is done:
+     * the failures sorted by path with what stopped them, then the totals. Exits with -1 if any file failed.
+     */
+    private static void cryptConcurrently(FileWalker walker, File executable, Scanner in, int jobs, boolean force,
+                                          boolean dry, boolean encrypt, FileCrypt crypt)
+            throws IOException, InterruptedException {
+        String done = encrypt ? "encrypted" : "decrypted";
+
+        List<File> confirmed = null;
+        if (!force) {
+            confirmed = new ArrayList<>();
+            File f;
+            while ((f = walker.next()) != null) {
+                if (isExecutable(f, executable)) continue;
+
+                System.out.printf("The file %s is about to be %s.%n", f.getName(), done);
+                if (confirm(f, encrypt, in)) confirmed.add(f);
+            }
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(jobs, workerThreads());
+        // Keeps the walker from running far ahead of the workers
+        Semaphore slots = new Semaphore(2 * jobs);
+
+        AtomicInteger succeeded = new AtomicInteger();
+        Map<String, String> failures = Collections.synchronizedMap(new TreeMap<>());
+        int total = 0;
+
+        try {
+            Iterator<File> list = confirmed == null ? null : confirmed.iterator();
+            while (true) {
+                File f;
+                if (list != null) {
+                    f = list.hasNext() ? list.next() : null;
+                } else {
+                    f = walker.next();
+                    if (f != null && isExecutable(f, executable)) continue;
+                }
+                if (f == null) break;
+
+                total++;
+                if (dry) continue;
+
+                slots.acquire();
+                File file = f;
+                executor.execute(() -> {
+                    try {
+                        crypt.crypt(file);
+                        succeeded.incrementAndGet();
+                    } catch (Exception e) {
+                        failures.put(file.getPath(), e.toString());
+                    } finally {
+                        slots.release();
+                    }
+                });
+            }
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        }
+
+        if (dry) {
+            System.out.printf("-dry was selected. Skipped algorithm execution for %d files.%n", total);
+            return;
+        }
+
+        for (Map.Entry<String, String> failure : failures.entrySet())
+            System.out.printf("%s could not be %s: %s%n", failure.getKey(), done, failure.getValue());
+        System.out.printf("%d of %d files were successfully %s on %d jobs, %d failed.%n",
+                succeeded.get(), total, done, jobs, failures.size());
+
+        if (!failures.isEmpty()) System.exit(-1);
+    }
+
+    /**
+     * @return Virtual threads on a JDK that has them, otherwise daemon platform threads
+     */
+    private static ThreadFactory workerThreads() {
+        try {
+            // Thread.ofVirtual().name("Crypt worker ", 0).factory(), Java 21 and later
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "Crypt worker ", 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return runnable -> {
+                Thread thread = new Thread(runnable, "Crypt worker");
+                thread.setDaemon(true);
+                return thread;
+            };
+        }
+    }
+
+    /**
+     * Prevents the application from encrypting itself.
+     */
+    private static boolean isExecutable(File f, File executable) throws IOException {
+        return f.getName().equals(executable.getName()) && Files.isSameFile(f.toPath(), executable.toPath());
+    }
+
+    /**
+     * To prevent accidental encryption/decryption, the user will be prompted before executing
+     * any algorithm for EACH file. Exits if the user declines.
+     * @return False if the user chose to skip the file
+     */
+    private static boolean confirm(File f, boolean encrypt, Scanner in) {
+        System.out.println("Are you sure you want to continue? (YES/Y)." +
+                " (C) will skip this file. Otherwise program will exit.");
+
+        int prompt = declinePrompt(in);
+        if (prompt == 0) System.exit(-1);
+        else if (prompt == -1) return false;
+
+        if (f.getName().endsWith(Utilities.ENCRYPTED_EXTENSION) && encrypt) {
+            System.out.printf("This file already has the %s extension. " +
+                    "Are you sure you want to continue? (YES/Y). (C) will skip this file. " +
+                    "Otherwise program will exit.", Utilities.ENCRYPTED_EXTENSION);
+
+            prompt = declinePrompt(in);
+            if (prompt == 0) System.exit(-1);
+            else if (prompt == -1) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Encrypts or decrypts standard input to standard output
+     */
+    private static void cryptStream(String algorithm, String key, String[] args, int algoIndex, boolean encrypt,
+                                    BLOWFISH.Mode blowfishMode) throws IOException, GeneralSecurityException {
+        InputStream in = new FileInputStream(FileDescriptor.in);
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16);
+
+        switch (algorithm) {
+            case "AES":
+                AES.crypt(in, out, key.getBytes(), encrypt);
+                break;
+            case "BLOWFISH":
+                BLOWFISH.crypt(in, out, key.getBytes(), encrypt, blowfishMode);
+                break;
+            case "RC4":
+                RC4.crypt(in, out, key.getBytes());
+                break;
+            case "XOR":
+                XOR.crypt(in, out, key.getBytes());
+                break;
+            case "RSA":
+                RSA.crypt(in, out, key.getBytes(), encrypt);
+                break;
+            case "ECC":
+                ECC.crypt(in, out, key.getBytes(), args[algoIndex + 1].getBytes(), encrypt);
+                break;
+            default:
+                throw new IllegalArgumentException();
+        }
+        out.flush();
+    }
+
+    /**
+     * Generates and prints RSA or ECC key pairs: -generate RSA [bits] [-count N] or -generate ECC [-count N]
+     */
+    private static void generateKeys(String[] args) {
+        String type = args[1].toUpperCase();
+        if (!type.equals("RSA") && !type.equals("ECC")) {
+            System.out.println("Did you mean -generate RSA or -generate ECC?");
+            System.exit(-1);
+        }
+
+        int bits = type.equals("RSA") ? 1024 : 256;
+        int count = 1;
+        try {
+            for (int i = 2; i < args.length; i++) {
+                if (args[i].toUpperCase().equals("-COUNT") && i + 1 < args.length)
+                    count = Integer.parseInt(args[++i]);
+                else if (type.equals("RSA"))
+                    bits = Integer.parseInt(args[i]);
+            }
+        } catch (NumberFormatException e) {
+            System.out.println("Key size and count must be numbers.");
+            System.exit(-1);
+        }
+
+        if (count < 1) {
+            System.out.println("-count must be at least 1.");
+            System.exit(-1);
+        }
+
+        if (count == 1) {
+            KeyPair kp = type.equals("RSA") ? RSA.generateRSAPair(bits) : ECC.generateECCPair();
+
+            if (kp == null) {
+                System.out.println("Could not generate keys.");
+                return;
+            }
+
+            System.out.printf("Here are your %s Keys:%n", type);
+            printKeyPair(kp);
+            return;
+        }
+
+        // Prime searches are independent, so every core generates pairs and they are printed in order
+        int[] printed = {0};
+        int total = count;
+        try {
+            KeyPairPool.generate(type.equals("RSA") ? "RSA" : "EC", bits, count,
+                    Runtime.getRuntime().availableProcessors(), kp -> {
+                        System.out.printf("Here are your %s Keys (%d of %d):%n", type, ++printed[0], total);
+                        printKeyPair(kp);
+                    });
+        } catch (GeneralSecurityException | InterruptedException | ExecutionException |
+                InvalidParameterException e) {
+            e.printStackTrace();
+            System.out.println("Could not generate keys.");
+            System.exit(-1);
+        }
+    }
+
+    private static void printKeyPair(KeyPair kp) {
+        System.out.println("Private Key in PKCS#8:");
+        System.out.println(Base64.getEncoder().encodeToString(kp.getPrivate().getEncoded()));
+        System.out.println("Public Key in X.509:");
+        System.out.println(Base64.getEncoder().encodeToString(kp.getPublic().getEncoded()));
+    }
+
     /**
      * Output information regarding a cipher's key requirements if the user
      * entered an invalid key.
      */
     private static void keyRequirements(String algorithm, String key) {
+        keyRequirements(algorithm, key, System.out);
+    }
+
+    /**
+     * Output information regarding a cipher's key requirements to out if the user
+     * entered an invalid key.
+     */
+    private static void keyRequirements(String algorithm, String key, PrintStream out) {
         if (algorithm.startsWith("-")) algorithm = algorithm.substring(1);
 
         Map<String, String> requirementStrings = new LinkedHashMap<String, String>() {{
@@ -283,17 +634,17 @@ public class Main {
         }};
 
         if (algorithm.isEmpty()) {
-            System.out.print(requirementStrings.get("DIVIDER") +
+            out.print(requirementStrings.get("DIVIDER") +
                     requirementStrings.get("TITLE") +
                     requirementStrings.get("DIVIDER"));
 
             for (String reqString : requirementStrings.keySet()) {
                 if (!reqString.equals("DIVIDER") && !reqString.equals("TITLE")) {
-                    System.out.print(requirementStrings.get(reqString));
+                    out.print(requirementStrings.get(reqString));
                 }
             }
 
-            System.out.println(requirementStrings.get("DIVIDER"));
+            out.println(requirementStrings.get("DIVIDER"));
 
             System.exit(0);
         } else if ((key.length() < keyRanges.get(algorithm)[0] || key.length() > keyRanges.get(algorithm)[1]) ||
@@ -301,9 +652,9 @@ public class Main {
                 (algorithm.equals("ECC") && key.length() != 32) ||
                 key.toUpperCase().equals("-INPUT")) {
 
-            System.out.println("Key supplied did not satisfy requirements. See below:\n");
+            out.println("Key supplied did not satisfy requirements. See below:\n");
 
-            System.out.print(requirementStrings.get("DIVIDER") +
+            out.print(requirementStrings.get("DIVIDER") +
                     requirementStrings.get("TITLE") +
                     requirementStrings.get("DIVIDER") +
                     requirementStrings.get(algorithm) +
@@ -1,112 +1,728 @@
 package com.crypt.algorithms;
 
 import javax.crypto.*;
+import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
-import java.security.InvalidAlgorithmParameterException;
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ForkJoinPool;
 
 // Implementation of the AES algorithm
 public class AES {
 
+    public enum Mode { CBC, CTR, GCM }
+
+    static final int BLOCK_SIZE = 16;
+
+    // Bytes pushed through the cipher per update. Must be a multiple of the AES block size.
+    private static final int STREAM_BUFFER_SIZE = 1 << 20;
+
+    // Bytes handled by a single fork-join task in CTR mode and parallel CBC decryption.
+    // Must be a multiple of the AES block size.
+    private static final int CHUNK_SIZE = 4 << 20;
+
+    // Bytes of the file mapped at once by cryptInPlace. Must be a multiple of the AES block size.
+    private static final int MAP_WINDOW_SIZE = 64 << 20;
+
+    // Plaintext bytes per authenticated GCM segment. Each segment is stored as [nonce][ciphertext][tag].
+    static final int GCM_SEGMENT_SIZE = 1 << 20;
+    static final int GCM_NONCE_SIZE = 12;
+    static final int GCM_TAG_SIZE = 16;
+    static final int GCM_SEGMENT_OVERHEAD = GCM_NONCE_SIZE + GCM_TAG_SIZE;
+
+    private static final ThreadLocal<byte[]> chunkBuffer =
+            ThreadLocal.withInitial(() -> new byte[Math.max(CHUNK_SIZE, GCM_SEGMENT_SIZE + GCM_SEGMENT_OVERHEAD)]);
+
+    private static final ThreadLocal<Context> context = ThreadLocal.withInitial(Context::new);
+
     public static void crypt(String filePath, byte[] key, boolean isEncryption) {
-        if (isEncryption) encrypt(filePath, key);
-        else decrypt(filePath, key);
+        crypt(filePath, key, isEncryption, Mode.CBC, 1);
+    }
 
+    public static void crypt(String filePath, byte[] key, boolean isEncryption, Mode mode) {
+        crypt(filePath, key, isEncryption, mode, ForkJoinPool.getCommonPoolParallelism());
     }
-    private static void encrypt(String filePath, byte[] key)  {
 
+    /**
+     * Encrypts or decrypts a file using AES
+     * @param filePath Path of the file
+     * @param key Key of any length, see fixKey
+     * @param isEncryption Whether to encrypt or decrypt the file
+     * @param mode Mode of operation. CBC encryption is serial. CBC decryption, CTR and GCM split the file
+     *             across parallelism threads.
+     * @param parallelism Number of threads used by CBC decryption, CTR and GCM
+     */
+    public static void crypt(String filePath, byte[] key, boolean isEncryption, Mode mode, int parallelism) {
         try {
+            cryptFile(filePath, key, isEncryption, mode, parallelism);
+        } catch (IOException | GeneralSecurityException e) {
+            System.out.println(isEncryption ? "Encryption failed" : "Decryption failed");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Same as crypt, but a failure is thrown instead of printed. The original file is left as it was.
+     */
+    public static void cryptFile(String filePath, byte[] key, boolean isEncryption, Mode mode, int parallelism)
+            throws IOException, GeneralSecurityException {
+        if (mode == Mode.CTR) cryptCTR(filePath, key, isEncryption, parallelism);
+        else if (mode == Mode.GCM) cryptGCM(filePath, key, isEncryption, parallelism);
+        else if (!isEncryption && parallelism > 1) decryptParallel(filePath, key, parallelism);
+        else if (isEncryption) encrypt(filePath, key, new byte[0]);
+        else decrypt(filePath, key, 0);
+    }
+
+    /**
+     * Encrypts or decrypts a stream, e.g. standard input to standard output, using segmented GCM. A stream can
+     * not be rewound to read a trailer, so the file id comes first: [file id][segment]...[segment], each segment
+     * laid out as in GCM files. Every segment is written as soon as it is sealed or verified, so output starts
+     * after one segment whatever the size of the input.
+     * @param in Plaintext or ciphertext
+     * @param out Receives the result
+     * @param key Key of any length, see fixKey
+     * @param isEncryption Whether to encrypt or decrypt the stream
+     * @throws AEADBadTagException if a segment fails authentication or the stream is truncated. Everything
+     *         written before it was authentic.
+     */
+    public static void crypt(InputStream in, OutputStream out, byte[] key, boolean isEncryption)
+            throws IOException, GeneralSecurityException {
+
+        Context ctx = context.get();
+        Cipher aes = ctx.cipher("AES/GCM/NoPadding");
+        SecretKeySpec keySpec = ctx.keySpec(key);
+        PushbackInputStream input = new PushbackInputStream(in, 1);
+
+        byte[] fileId = new byte[BLOCK_SIZE];
+        if (isEncryption) {
+            fileId = Utilities.getIV(BLOCK_SIZE);
+            out.write(fileId);
+        } else if (Utilities.readFully(input, fileId, 0, BLOCK_SIZE) != BLOCK_SIZE) {
+            throw new IllegalBlockSizeException("Stream is missing its file id");
+        }
+
+        // Plaintext is read after the space for the nonce, ciphertext is read whole
+        int offset = isEncryption ? GCM_NONCE_SIZE : 0;
+        int recordSize = isEncryption ? GCM_SEGMENT_SIZE : GCM_SEGMENT_SIZE + GCM_SEGMENT_OVERHEAD;
+        byte[] data = new byte[GCM_SEGMENT_SIZE + GCM_SEGMENT_OVERHEAD];
 
-            Cipher aes = Cipher.getInstance("AES/CBC/NoPadding");
+        for (long index = 0; ; index++) {
+            int length = Utilities.readFully(input, data, offset, recordSize);
+            boolean last = length < recordSize || Utilities.atEnd(input);
+
+            if (isEncryption) {
+                byte[] nonce = NonceGenerator.next(GCM_NONCE_SIZE);
+
+                aes.init(Cipher.ENCRYPT_MODE, keySpec, new GCMParameterSpec(GCM_TAG_SIZE * 8, nonce));
+                aes.updateAAD(segmentAAD(fileId, index, last));
+                int sealed = aes.doFinal(data, GCM_NONCE_SIZE, length, data, GCM_NONCE_SIZE);
+                System.arraycopy(nonce, 0, data, 0, GCM_NONCE_SIZE);
+
+                out.write(data, 0, GCM_NONCE_SIZE + sealed);
+            } else {
+                if (length < GCM_SEGMENT_OVERHEAD) throw new AEADBadTagException("Stream was truncated");
+
+                aes.init(Cipher.DECRYPT_MODE, keySpec, new GCMParameterSpec(GCM_TAG_SIZE * 8, data, 0, GCM_NONCE_SIZE));
+                aes.updateAAD(segmentAAD(fileId, index, last));
+                int opened = aes.doFinal(data, GCM_NONCE_SIZE, length - GCM_NONCE_SIZE, data, GCM_NONCE_SIZE);
+
+                out.write(data, GCM_NONCE_SIZE, opened);
+            }
+
+            if (last) break;
+        }
+        out.flush();
+    }
+
+    /**
+     * Checks the authentication tag of every segment of a GCM encrypted file without writing any plaintext
+     * @param filePath Path of the encrypted file
+     * @param key Key the file was encrypted with
+     * @return Indices of the segments that failed authentication, in ascending order. Empty if the file is intact.
+     */
+    public static List<Long> verify(String filePath, byte[] key) {
+        SecretKeySpec keySpec = context.get().keySpec(key);
+
+        try (FileChannel in = FileChannel.open(Paths.get(filePath), StandardOpenOption.READ)) {
+            return new ArrayList<>(decryptSegments(in, null, keySpec, ForkJoinPool.getCommonPoolParallelism()));
+        } catch (IOException | GeneralSecurityException e) {
+            System.out.println("Verification failed");
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Serial CBC encryption
+     * @param suffix Bytes written after the trailer before the file is committed, e.g. the key RSA wrapped
+     */
+    static void encrypt(String filePath, byte[] key, byte[] suffix) throws IOException, GeneralSecurityException {
+
+        try (FileTransform file = new FileTransform(filePath, true, 0, STREAM_BUFFER_SIZE)) {
+
+            Context ctx = context.get();
+            Cipher aes = ctx.cipher("AES/CBC/NoPadding");
 
             int aesBlockSize = aes.getBlockSize();
-            byte[] toEncrypt = Utilities.readFile(filePath);
             byte[] iv = Utilities.getIV(aesBlockSize);
 
             // AES keys must be of size 16, 24, or 32
-            byte[] keyMod = fixKey(key);
-
-            SecretKeySpec keySpec = new SecretKeySpec(keyMod, "AES");
+            SecretKeySpec keySpec = ctx.keySpec(key);
             IvParameterSpec ivSpec = new IvParameterSpec(iv);
 
             aes.init(Cipher.ENCRYPT_MODE, keySpec, ivSpec);
 
-            int numPadding = aesBlockSize - (toEncrypt.length % aesBlockSize);
+            int numPadding = aesBlockSize - (int) (file.length() % aesBlockSize);
             if (numPadding == aesBlockSize) numPadding = 0;
+            byte[] padding = new byte[numPadding];
+
+            // Stream the file through the cipher. Partial blocks are held back by the cipher until the next call,
+            // and the final block is padded with zeroes.
+            file.transform(new FileTransform.Transform() {
+                @Override
+                public void update(ByteBuffer in, ByteBuffer out) throws GeneralSecurityException {
+                    aes.update(in, out);
+                }
+
+                @Override
+                public void finish(ByteBuffer out) throws GeneralSecurityException {
+                    aes.doFinal(ByteBuffer.wrap(padding), out);
+                }
+            }, aesBlockSize);
+
+            // append to EOF the number of padding used followed by the IV used
+            byte[] padAndIV = new byte[1 + iv.length];
+            System.arraycopy(iv, 0, padAndIV, 1, iv.length);
+            padAndIV[0] = (byte) numPadding;
 
-            // Copy input into pad-sized array. If it wasn't padded, we don't need to copy.
-            byte[] paddedToEncrypt;
-            if (numPadding == 0) {
-                paddedToEncrypt = toEncrypt;
-            } else {
-                paddedToEncrypt = new byte[toEncrypt.length + numPadding];
-                System.arraycopy(toEncrypt, 0, paddedToEncrypt, 0, toEncrypt.length);
+            file.write(padAndIV);
+            file.write(suffix);
+            file.finish();
+        }
+    }
+
+    /**
+     * Serial CBC decryption
+     * @param suffixLength Bytes after the trailer that are not part of the file, e.g. the key RSA wrapped
+     */
+    static void decrypt(String filePath, byte[] key, int suffixLength) throws IOException, GeneralSecurityException {
+
+        Context ctx = context.get();
+        int aesBlockSize = BLOCK_SIZE;
+        int trailerLength = Trailer.length(Mode.CBC);
+
+        // Num of padding and IV are at the EOF, before any suffix. Everything before them is ciphertext.
+        try (FileTransform file = new FileTransform(filePath, false, trailerLength + suffixLength,
+                STREAM_BUFFER_SIZE)) {
+            Cipher aes = ctx.cipher("AES/CBC/NoPadding");
+
+            Trailer trailer = Trailer.parse(file.length(), Arrays.copyOf(file.trailer(), trailerLength), Mode.CBC);
+
+            // AES keys must be of size 16, 24, or 32
+            SecretKeySpec keySpec = ctx.keySpec(key);
+            IvParameterSpec ivSpec = new IvParameterSpec(trailer.iv);
+
+            aes.init(Cipher.DECRYPT_MODE, keySpec, ivSpec);
+
+            // Do decryption, stopping before the trailer
+            file.transform(new FileTransform.Transform() {
+                @Override
+                public void update(ByteBuffer in, ByteBuffer out) throws GeneralSecurityException {
+                    aes.update(in, out);
+                }
+
+                @Override
+                public void finish(ByteBuffer out) throws GeneralSecurityException {
+                    aes.doFinal(ByteBuffer.allocate(0), out);
+                }
+            }, aesBlockSize);
+
+            // Un-pad if necessary
+            file.setLength(trailer.dataSize - trailer.numPadding);
+            file.finish();
+        }
+    }
+
+    /**
+     * CBC decryption split across a fork-join pool. A plaintext block depends only on its own ciphertext block
+     * and the one before it, so each chunk is decrypted separately, starting from the last ciphertext block of
+     * the chunk before it. Output is identical to decrypt.
+     */
+    private static void decryptParallel(String filePath, byte[] key, int parallelism)
+            throws IOException, GeneralSecurityException {
+
+        Path source = Paths.get(filePath);
+        Path target = Paths.get(Utilities.setNormalExtension(filePath));
+
+        SecretKeySpec keySpec = context.get().keySpec(key);
+        Path temp = null;
+
+        try {
+            temp = Utilities.createSiblingTempFile(target);
+            try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+                 FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+
+                // Read num of padding and IV from the EOF. Everything before them is ciphertext.
+                Trailer trailer = Trailer.read(in, Mode.CBC);
+                long cipherTextSize = trailer.dataSize;
+
+                long chunks = (cipherTextSize + CHUNK_SIZE - 1) / CHUNK_SIZE;
+                ChunkTask.run(chunk -> {
+                    long start = chunk * CHUNK_SIZE;
+                    decryptCBCRange(in, out, keySpec, trailer.iv, start, Math.min(start + CHUNK_SIZE, cipherTextSize));
+                }, 0, chunks, parallelism);
+
+                // Un-pad if necessary
+                out.truncate(cipherTextSize - trailer.numPadding);
             }
 
-            // Do encryption
-            byte[] encrypted = aes.doFinal(paddedToEncrypt);
+            Utilities.commitFile(temp, target, source);
 
-            // write encrypted text to file then append to EOF the number of padding used followed by the IV used
-            byte[] padAndIV = new byte[1 + iv.length];
-            System.arraycopy(iv, 0, padAndIV, 1, iv.length);
-            padAndIV[0] = (byte) numPadding;
+        } finally {
+            if (temp != null) Utilities.deleteFile(temp.toString());
+        }
+    }
 
-            Utilities.writeFile(encrypted, filePath, Utilities.ENCRYPT);
-            Utilities.writeDataAtOffset(padAndIV, filePath + Utilities.ENCRYPTED_EXTENSION, 0,
-                    true);
+    /**
+     * Decrypts CBC ciphertext bytes [start, end). The block before start is read as well to seed the chain.
+     */
+    private static void decryptCBCRange(FileChannel in, FileChannel out, SecretKeySpec keySpec, byte[] iv,
+                                        long start, long end) throws IOException, GeneralSecurityException {
+        byte[] chain = iv;
+        if (start > 0) {
+            chain = new byte[BLOCK_SIZE];
+            Utilities.readFully(in, ByteBuffer.wrap(chain), start - BLOCK_SIZE);
+        }
 
-        } catch (NoSuchPaddingException | NoSuchAlgorithmException | BadPaddingException | IllegalBlockSizeException |
-                InvalidAlgorithmParameterException | InvalidKeyException e) {
-            System.out.println("Encryption failed");
+        Cipher aes = context.get().cipher("AES/CBC/NoPadding");
+        aes.init(Cipher.DECRYPT_MODE, keySpec, new IvParameterSpec(chain));
+
+        int length = (int) (end - start);
+        byte[] data = chunkBuffer.get();
+
+        Utilities.readFully(in, ByteBuffer.wrap(data, 0, length), start);
+        aes.doFinal(data, 0, length, data, 0);
+        Utilities.writeFully(out, ByteBuffer.wrap(data, 0, length), start);
+    }
+
+    /**
+     * Encrypts or decrypts a file in place instead of writing a new file. The file is mapped in windows and
+     * every byte is transformed where it lies, then the trailer is appended and the file renamed, so the data
+     * is passed over once and the page cache does the I/O. Produces the same format as crypt.
+     * The original content is lost if the process stops part way through.
+     * @param filePath Path of the file
+     * @param key Key of any length, see fixKey
+     * @param isEncryption Whether to encrypt or decrypt the file
+     * @param mode CBC or CTR. GCM segments grow during encryption and can not be processed in place.
+     */
+    public static void cryptInPlace(String filePath, byte[] key, boolean isEncryption, Mode mode) {
+        try {
+            cryptFileInPlace(filePath, key, isEncryption, mode);
+        } catch (IOException | GeneralSecurityException e) {
+            System.out.println(isEncryption ? "Encryption failed" : "Decryption failed");
             e.printStackTrace();
         }
     }
 
-    private static void decrypt(String filePath, byte[] key) {
+    /**
+     * Same as cryptInPlace, but a failure is thrown instead of printed
+     */
+    public static void cryptFileInPlace(String filePath, byte[] key, boolean isEncryption, Mode mode)
+            throws IOException, GeneralSecurityException {
+        if (mode == Mode.GCM) throw new IllegalArgumentException("GCM can not be processed in place");
+
+        Path source = Paths.get(filePath);
+        Path target = Paths.get(isEncryption ?
+                Utilities.setEncryptedExtension(filePath)
+                :
+                Utilities.setNormalExtension(filePath));
+
+        try (FileChannel file = FileChannel.open(source, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            Context ctx = context.get();
+            Cipher aes = ctx.cipher(mode == Mode.CTR ? "AES/CTR/NoPadding" : "AES/CBC/NoPadding");
+            SecretKeySpec keySpec = ctx.keySpec(key);
+
+            long dataSize;
+            int numPadding;
+            byte[] iv;
+
+            if (isEncryption) {
+                dataSize = file.size();
+                numPadding = mode == Mode.CTR ? 0 : (int) ((BLOCK_SIZE - dataSize % BLOCK_SIZE) % BLOCK_SIZE);
+                iv = Utilities.getIV(BLOCK_SIZE);
+                aes.init(Cipher.ENCRYPT_MODE, keySpec, new IvParameterSpec(iv));
+            } else {
+                Trailer trailer = Trailer.read(file, mode);
+                dataSize = trailer.dataSize;
+                numPadding = trailer.numPadding;
+                iv = trailer.iv;
+                aes.init(mode == Mode.CTR ? Cipher.ENCRYPT_MODE : Cipher.DECRYPT_MODE, keySpec,
+                        new IvParameterSpec(iv));
+            }
+
+            // Mapping past EOF grows the file, so the zero padding of the last CBC block comes for free
+            long end = dataSize + numPadding;
+            byte[] step = new byte[STREAM_BUFFER_SIZE];
+
+            for (long windowStart = 0; windowStart < end; windowStart += MAP_WINDOW_SIZE) {
+                MappedByteBuffer window = file.map(FileChannel.MapMode.READ_WRITE, windowStart,
+                        Math.min(MAP_WINDOW_SIZE, end - windowStart));
+
+                try {
+                    while (window.hasRemaining()) {
+                        int position = window.position();
+                        int length = Math.min(step.length, window.remaining());
+
+                        window.get(step, 0, length);
+                        aes.update(step, 0, length, step, 0);
+                        window.position(position);
+                        window.put(step, 0, length);
+                    }
+                } finally {
+                    // Windows refuses to truncate or move a file while any part of it is mapped
+                    Utilities.unmap(window);
+                }
+            }
+
+            if (isEncryption) {
+                // CBC appends [numPadding][IV], CTR appends [initial counter block]
+                ByteBuffer trailer = ByteBuffer.allocate(Trailer.length(mode));
+                if (mode == Mode.CBC) trailer.put((byte) numPadding);
+                trailer.put(iv).flip();
+                Utilities.writeFully(file, trailer, end);
+            } else {
+                file.truncate(dataSize - numPadding);
+            }
+        }
+
+        // The file is its own temporary file
+        Utilities.commitFile(source, target, source);
+    }
+
+    /**
+     * Counter mode. The file is written as [ciphertext][initial counter block]. Ciphertext is the same length
+     * as the plaintext, and every block can be computed independently, so the file is split into chunks that are
+     * each read, encrypted and written at their own offset by a fork-join pool.
+     */
+    private static void cryptCTR(String filePath, byte[] key, boolean isEncryption, int parallelism)
+            throws IOException, GeneralSecurityException {
+
+        Path source = Paths.get(filePath);
+        Path target = Paths.get(isEncryption ?
+                Utilities.setEncryptedExtension(filePath)
+                :
+                Utilities.setNormalExtension(filePath));
+
+        SecretKeySpec keySpec = context.get().keySpec(key);
+        Path temp = null;
 
         try {
-            Cipher aes = Cipher.getInstance("AES/CBC/NoPadding");
+            temp = Utilities.createSiblingTempFile(target);
+            try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+                 FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+
+                long dataSize;
+                byte[] iv;
+
+                if (isEncryption) {
+                    dataSize = in.size();
+                    iv = Utilities.getIV(BLOCK_SIZE);
+                } else {
+                    // Read the initial counter block from the EOF. Everything before it is ciphertext.
+                    Trailer trailer = Trailer.read(in, Mode.CTR);
+                    dataSize = trailer.dataSize;
+                    iv = trailer.iv;
+                }
+
+                long chunks = (dataSize + CHUNK_SIZE - 1) / CHUNK_SIZE;
+                ChunkTask.run(chunk -> {
+                    long start = chunk * CHUNK_SIZE;
+                    cryptCounterRange(in, out, keySpec, iv, start, Math.min(start + CHUNK_SIZE, dataSize));
+                }, 0, chunks, parallelism);
+
+                if (isEncryption)
+                    Utilities.writeFully(out, ByteBuffer.wrap(iv), dataSize);
+            }
 
-            int aesBlockSize = aes.getBlockSize();
+            Utilities.commitFile(temp, target, source);
 
-            // Read num of padding and IV from the EOF, then truncate
-            byte[] padAndIV = Utilities.readDataAtOffset(filePath, (1 + aesBlockSize), 0, true);
+        } finally {
+            if (temp != null) Utilities.deleteFile(temp.toString());
+        }
+    }
 
-            int numPadding = padAndIV[0] & 0xFF;
-            byte[] iv = new byte[aesBlockSize];
-            System.arraycopy(padAndIV, 1, iv, 0, iv.length);
+    /**
+     * Encrypts or decrypts bytes [start, end) of a counter mode file
+     */
+    private static void cryptCounterRange(FileChannel in, FileChannel out, SecretKeySpec keySpec, byte[] iv,
+                                          long start, long end) throws IOException, GeneralSecurityException {
+        Cipher aes = context.get().cipher("AES/CTR/NoPadding");
+        aes.init(Cipher.ENCRYPT_MODE, keySpec, new IvParameterSpec(counterBlock(iv, start / BLOCK_SIZE)));
 
-            Utilities.truncateDataAtEOF(padAndIV, filePath);
+        int length = (int) (end - start);
+        byte[] data = chunkBuffer.get();
 
-            // AES keys must be of size 16, 24, or 32
-            byte[] keyMod = fixKey(key);
+        Utilities.readFully(in, ByteBuffer.wrap(data, 0, length), start);
+        aes.doFinal(data, 0, length, data, 0);
+        Utilities.writeFully(out, ByteBuffer.wrap(data, 0, length), start);
+    }
 
-            SecretKeySpec keySpec = new SecretKeySpec(keyMod, "AES");
-            IvParameterSpec ivSpec = new IvParameterSpec(iv);
+    /**
+     * Returns the counter block for the block at blockIndex, treating iv as a 128-bit big-endian counter
+     * the same way AES/CTR/NoPadding increments it.
+     */
+    static byte[] counterBlock(byte[] iv, long blockIndex) {
+        byte[] counter = Arrays.copyOf(iv, iv.length);
+
+        long carry = blockIndex;
+        for (int i = counter.length - 1; i >= 0 && carry != 0; i--) {
+            long sum = (counter[i] & 0xFF) + (carry & 0xFF);
+            counter[i] = (byte) sum;
+            carry = (carry >>> 8) + (sum >>> 8);
+        }
 
-            // Do decryption
-            byte[] toDecrypt = Utilities.readFile(filePath);
-            aes.init(Cipher.DECRYPT_MODE, keySpec, ivSpec);
-            byte[] decrypted = aes.doFinal(toDecrypt);
+        return counter;
+    }
 
-            // Un-pad if necessary
-            byte[] decryptedUnpadded;
-            if (numPadding == 0) {
-                decryptedUnpadded = decrypted;
-            } else {
-                decryptedUnpadded = new byte[decrypted.length - numPadding];
-                System.arraycopy(decrypted, 0, decryptedUnpadded, 0, decryptedUnpadded.length);
+    /**
+     * Segmented GCM. The file is written as [segment 0]...[segment n][file id], where every segment holds up to
+     * GCM_SEGMENT_SIZE bytes of plaintext as [nonce][ciphertext][tag]. Each segment is authenticated together with
+     * the file id, its index and whether it is the last segment, so segments can not be reordered, moved between
+     * files or dropped from the end. Segments are encrypted, decrypted and verified in parallel.
+     */
+    private static void cryptGCM(String filePath, byte[] key, boolean isEncryption, int parallelism)
+            throws IOException, GeneralSecurityException {
+
+        Path source = Paths.get(filePath);
+        Path target = Paths.get(isEncryption ?
+                Utilities.setEncryptedExtension(filePath)
+                :
+                Utilities.setNormalExtension(filePath));
+
+        SecretKeySpec keySpec = context.get().keySpec(key);
+        Path temp = null;
+
+        try {
+            temp = Utilities.createSiblingTempFile(target);
+            try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+                 FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+
+                if (isEncryption) {
+                    encryptSegments(in, out, keySpec, parallelism);
+                } else {
+                    Set<Long> corrupt = decryptSegments(in, out, keySpec, parallelism);
+                    if (!corrupt.isEmpty())
+                        throw new AEADBadTagException("Segments " + corrupt + " failed authentication");
+                }
             }
 
-            Utilities.writeFile(decryptedUnpadded, filePath, Utilities.DECRYPT);
+            Utilities.commitFile(temp, target, source);
 
-        } catch (NoSuchPaddingException | NoSuchAlgorithmException | BadPaddingException | IllegalBlockSizeException |
-                InvalidAlgorithmParameterException | InvalidKeyException e) {
-            System.out.println("Decryption failed");
-            e.printStackTrace();
+        } finally {
+            if (temp != null) Utilities.deleteFile(temp.toString());
+        }
+    }
+
+    private static void encryptSegments(FileChannel in, FileChannel out, SecretKeySpec keySpec, int parallelism)
+            throws IOException, GeneralSecurityException {
+
+        long plainSize = in.size();
+        long segments = Math.max(1, (plainSize + GCM_SEGMENT_SIZE - 1) / GCM_SEGMENT_SIZE);
+
+        byte[] fileId = Utilities.getIV(BLOCK_SIZE);
+
+        ChunkTask.run(index -> {
+            long offset = index * GCM_SEGMENT_SIZE;
+            int length = (int) Math.min(GCM_SEGMENT_SIZE, plainSize - offset);
+
+            byte[] nonce = NonceGenerator.next(GCM_NONCE_SIZE);
+
+            Cipher aes = context.get().cipher("AES/GCM/NoPadding");
+            aes.init(Cipher.ENCRYPT_MODE, keySpec, new GCMParameterSpec(GCM_TAG_SIZE * 8, nonce));
+            aes.updateAAD(segmentAAD(fileId, index, index == segments - 1));
+
+            byte[] data = chunkBuffer.get();
+            Utilities.readFully(in, ByteBuffer.wrap(data, GCM_NONCE_SIZE, length), offset);
+            int sealed = aes.doFinal(data, GCM_NONCE_SIZE, length, data, GCM_NONCE_SIZE);
+            System.arraycopy(nonce, 0, data, 0, GCM_NONCE_SIZE);
+
+            Utilities.writeFully(out, ByteBuffer.wrap(data, 0, GCM_NONCE_SIZE + sealed),
+                    index * (GCM_SEGMENT_SIZE + GCM_SEGMENT_OVERHEAD));
+        }, 0, segments, parallelism);
+
+        Utilities.writeFully(out, ByteBuffer.wrap(fileId), plainSize + segments * GCM_SEGMENT_OVERHEAD);
+    }
+
+    /**
+     * Decrypts and verifies every segment. A segment that fails authentication is recorded and skipped,
+     * the other segments are still processed.
+     * @param out Channel the plaintext is written to, or null to only verify
+     * @return Indices of the segments that failed authentication
+     */
+    private static Set<Long> decryptSegments(FileChannel in, FileChannel out, SecretKeySpec keySpec,
+                                             int parallelism) throws IOException, GeneralSecurityException {
+
+        int sealedSegmentSize = GCM_SEGMENT_SIZE + GCM_SEGMENT_OVERHEAD;
+
+        // Read the file id from the EOF. Everything before it is segments.
+        long dataSize = in.size() - BLOCK_SIZE;
+        long segments = (dataSize + sealedSegmentSize - 1) / sealedSegmentSize;
+        if (dataSize < GCM_SEGMENT_OVERHEAD || dataSize - (segments - 1) * sealedSegmentSize < GCM_SEGMENT_OVERHEAD)
+            throw new IllegalBlockSizeException("File is not a segmented AES-GCM file");
+
+        byte[] fileId = new byte[BLOCK_SIZE];
+        Utilities.readFully(in, ByteBuffer.wrap(fileId), dataSize);
+
+        Set<Long> corrupt = new ConcurrentSkipListSet<>();
+
+        ChunkTask.run(index -> {
+            long offset = index * sealedSegmentSize;
+            int length = (int) Math.min(sealedSegmentSize, dataSize - offset);
+
+            byte[] data = chunkBuffer.get();
+            Utilities.readFully(in, ByteBuffer.wrap(data, 0, length), offset);
+
+            Cipher aes = context.get().cipher("AES/GCM/NoPadding");
+            aes.init(Cipher.DECRYPT_MODE, keySpec, new GCMParameterSpec(GCM_TAG_SIZE * 8, data, 0, GCM_NONCE_SIZE));
+            aes.updateAAD(segmentAAD(fileId, index, index == segments - 1));
+
+            int opened;
+            try {
+                opened = aes.doFinal(data, GCM_NONCE_SIZE, length - GCM_NONCE_SIZE, data, GCM_NONCE_SIZE);
+            } catch (AEADBadTagException e) {
+                corrupt.add(index);
+                return;
+            }
+
+            if (out != null)
+                Utilities.writeFully(out, ByteBuffer.wrap(data, GCM_NONCE_SIZE, opened), index * GCM_SEGMENT_SIZE);
+        }, 0, segments, parallelism);
+
+        return corrupt;
+    }
+
+    /**
+     * Additional authenticated data of a segment: [file id][index][1 if last segment, else 0]
+     */
+    static byte[] segmentAAD(byte[] fileId, long index, boolean last) {
+        return ByteBuffer.allocate(fileId.length + Long.BYTES + 1)
+                .put(fileId)
+                .putLong(index)
+                .put((byte) (last ? 1 : 0))
+                .array();
+    }
+
+    /**
+     * Data size, padding and IV of a CBC or CTR file, read from the trailer at its EOF. CBC files end with
+     * [numPadding][IV], CTR files with [initial counter block] and are never padded.
+     */
+    private static final class Trailer {
+
+        final long dataSize;
+        final int numPadding;
+        final byte[] iv;
+
+        private Trailer(long dataSize, int numPadding, byte[] iv) {
+            this.dataSize = dataSize;
+            this.numPadding = numPadding;
+            this.iv = iv;
+        }
+
+        /**
+         * @return Length of the trailer of a file in mode
+         */
+        static int length(Mode mode) {
+            return mode == Mode.CTR ? BLOCK_SIZE : 1 + BLOCK_SIZE;
+        }
+
+        /**
+         * Reads and checks the trailer of an open file
+         */
+        static Trailer read(FileChannel in, Mode mode) throws IOException, GeneralSecurityException {
+            int length = length(mode);
+            long dataSize = in.size() - length;
+            if (dataSize < 0) throw new IllegalBlockSizeException(mode == Mode.CTR ?
+                    "File is missing its counter block"
+                    :
+                    "File is not a multiple of the AES block size");
+
+            byte[] trailer = new byte[length];
+            if (Utilities.readFully(in, ByteBuffer.wrap(trailer), dataSize) != length)
+                throw new EOFException("File changed size while reading its trailer");
+
+            return parse(dataSize, trailer, mode);
+        }
+
+        /**
+         * Checks a trailer that has already been read
+         * @param dataSize Bytes before the trailer
+         * @param trailer The last length(mode) bytes of the file
+         */
+        static Trailer parse(long dataSize, byte[] trailer, Mode mode) throws GeneralSecurityException {
+            if (mode == Mode.CBC && dataSize % BLOCK_SIZE != 0)
+                throw new IllegalBlockSizeException("File is not a multiple of the AES block size");
+
+            int numPadding = mode == Mode.CTR ? 0 : trailer[0] & 0xFF;
+            if (numPadding >= BLOCK_SIZE || numPadding > dataSize)
+                throw new BadPaddingException("Invalid padding length " + numPadding);
+
+            return new Trailer(dataSize, numPadding, Arrays.copyOfRange(trailer, trailer.length - BLOCK_SIZE,
+                    trailer.length));
+        }
+    }
+
+    /**
+     * Cipher instances and the derived key of the last file processed on a thread. On small files the provider
+     * lookup in Cipher.getInstance and fixing the key cost more than the encryption itself, so both are kept
+     * between files and the cipher is only re-initialised with the new IV.
+     */
+    private static class Context {
+
+        private final Map<String, Cipher> ciphers = new HashMap<>();
+        private byte[] key;
+        private SecretKeySpec keySpec;
+
+        /**
+         * @param transformation e.g. AES/CBC/NoPadding
+         * @return This thread's cipher for transformation. It must be initialised before use.
+         */
+        Cipher cipher(String transformation) throws GeneralSecurityException {
+            Cipher cipher = ciphers.get(transformation);
+            if (cipher == null) {
+                cipher = Cipher.getInstance(transformation);
+                ciphers.put(transformation, cipher);
+            }
+            return cipher;
+        }
+
+        /**
+         * @param key key of unknown length
+         * @return AES key spec of key after fixKey, reused while the same key is passed in
+         */
+        SecretKeySpec keySpec(byte[] key) {
+            if (keySpec == null || !Arrays.equals(this.key, key)) {
+                this.key = key.clone();
+                this.keySpec = new SecretKeySpec(fixKey(key), "AES");
+            }
+            return keySpec;
         }
     }
 
@@ -117,7 +733,7 @@ public class AES {
      *        - Keys of smaller size are repeated to match up to closer size.
      *        - Keys of size > 32 bytes are truncated to 32
      */
-    private static byte[] fixKey(byte[] key) {
+    static byte[] fixKey(byte[] key) {
         if (key.length == 16 || key.length == 24 || key.length == 32) return key;
         if (key.length > 32) return Arrays.copyOfRange(key, 0, 32);
 
@@ -0,0 +1,203 @@
+package com.crypt.algorithms;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+
+/**
+ * Read-only view of the plaintext of an AES CTR or GCM encrypted file. Only the counter blocks or segments
+ * covering a read are decrypted, so reads anywhere in the file cost the same regardless of file size.
+ * The encrypted file is never modified.
+ */
+public class AESReadChannel implements SeekableByteChannel {
+
+    // Most bytes decrypted by a single CTR read
+    private static final int CTR_READ_SIZE = 64 << 10;
+
+    private final FileChannel file;
+    private final AES.Mode mode;
+    private final SecretKeySpec keySpec;
+    private final Cipher cipher;
+
+    // Initial counter block for CTR, file id for GCM
+    private final byte[] trailer;
+    private final long size;
+    private final long segments;
+    private final byte[] buffer;
+
+    private long position = 0;
+
+    // GCM segment currently held decrypted in buffer, -1 if none
+    private long cachedSegment = -1;
+    private int cachedLength;
+
+    /**
+     * Opens an encrypted file for random access reads
+     * @param filePath Path to the encrypted file
+     * @param key Key the file was encrypted with
+     * @param mode CTR or GCM, the mode the file was encrypted with
+     * @throws IOException if the file could not be read
+     * @throws GeneralSecurityException if the file is not in the format of mode
+     */
+    public AESReadChannel(String filePath, byte[] key, AES.Mode mode) throws IOException, GeneralSecurityException {
+        if (mode != AES.Mode.CTR && mode != AES.Mode.GCM)
+            throw new IllegalArgumentException("Random access requires CTR or GCM, not " + mode);
+
+        this.mode = mode;
+        this.keySpec = new SecretKeySpec(AES.fixKey(key), "AES");
+        this.file = FileChannel.open(Paths.get(filePath), StandardOpenOption.READ);
+
+        try {
+            long dataSize = file.size() - AES.BLOCK_SIZE;
+            this.trailer = new byte[AES.BLOCK_SIZE];
+
+            if (mode == AES.Mode.CTR) {
+                if (dataSize < 0) throw new IllegalBlockSizeException("File is missing its counter block");
+
+                this.cipher = Cipher.getInstance("AES/CTR/NoPadding");
+                this.size = dataSize;
+                this.segments = 0;
+                this.buffer = new byte[CTR_READ_SIZE + AES.BLOCK_SIZE];
+            } else {
+                int sealedSegmentSize = AES.GCM_SEGMENT_SIZE + AES.GCM_SEGMENT_OVERHEAD;
+                long segments = (dataSize + sealedSegmentSize - 1) / sealedSegmentSize;
+                if (dataSize < AES.GCM_SEGMENT_OVERHEAD ||
+                        dataSize - (segments - 1) * sealedSegmentSize < AES.GCM_SEGMENT_OVERHEAD)
+                    throw new IllegalBlockSizeException("File is not a segmented AES-GCM file");
+
+                this.cipher = Cipher.getInstance("AES/GCM/NoPadding");
+                this.size = dataSize - segments * AES.GCM_SEGMENT_OVERHEAD;
+                this.segments = segments;
+                this.buffer = new byte[sealedSegmentSize];
+            }
+
+            Utilities.readFully(file, ByteBuffer.wrap(trailer), dataSize);
+        } catch (IOException | GeneralSecurityException | RuntimeException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if (!isOpen()) throw new ClosedChannelException();
+        if (position >= size) return -1;
+        if (!dst.hasRemaining()) return 0;
+
+        try {
+            int read = mode == AES.Mode.CTR ? readCounter(dst) : readSegment(dst);
+            position += read;
+            return read;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Could not decrypt at position " + position, e);
+        }
+    }
+
+    /**
+     * Decrypts only the counter blocks covering the read
+     */
+    private int readCounter(ByteBuffer dst) throws IOException, GeneralSecurityException {
+        int skip = (int) (position % AES.BLOCK_SIZE);
+        int length = (int) Math.min(Math.min(dst.remaining(), CTR_READ_SIZE), size - position);
+        long blockStart = position - skip;
+
+        cipher.init(Cipher.ENCRYPT_MODE, keySpec,
+                new IvParameterSpec(AES.counterBlock(trailer, blockStart / AES.BLOCK_SIZE)));
+
+        int read = Utilities.readFully(file, ByteBuffer.wrap(buffer, 0, skip + length), blockStart);
+        cipher.doFinal(buffer, 0, read, buffer, 0);
+
+        dst.put(buffer, skip, length);
+        return length;
+    }
+
+    /**
+     * Decrypts and verifies the segment holding position, unless it is already cached
+     */
+    private int readSegment(ByteBuffer dst) throws IOException, GeneralSecurityException {
+        long segment = position / AES.GCM_SEGMENT_SIZE;
+
+        if (segment != cachedSegment) {
+            int sealedSegmentSize = AES.GCM_SEGMENT_SIZE + AES.GCM_SEGMENT_OVERHEAD;
+            long offset = segment * sealedSegmentSize;
+            long dataSize = size + segments * AES.GCM_SEGMENT_OVERHEAD;
+            int length = (int) Math.min(sealedSegmentSize, dataSize - offset);
+
+            cachedSegment = -1;
+            Utilities.readFully(file, ByteBuffer.wrap(buffer, 0, length), offset);
+
+            cipher.init(Cipher.DECRYPT_MODE, keySpec,
+                    new GCMParameterSpec(AES.GCM_TAG_SIZE * 8, buffer, 0, AES.GCM_NONCE_SIZE));
+            cipher.updateAAD(AES.segmentAAD(trailer, segment, segment == segments - 1));
+
+            try {
+                cachedLength = cipher.doFinal(buffer, AES.GCM_NONCE_SIZE, length - AES.GCM_NONCE_SIZE,
+                        buffer, AES.GCM_NONCE_SIZE);
+            } catch (AEADBadTagException e) {
+                throw new IOException("Segment " + segment + " failed authentication", e);
+            }
+            cachedSegment = segment;
+        }
+
+        int skip = (int) (position - segment * AES.GCM_SEGMENT_SIZE);
+        int length = Math.min(dst.remaining(), cachedLength - skip);
+
+        dst.put(buffer, AES.GCM_NONCE_SIZE + skip, length);
+        return length;
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public long position() throws IOException {
+        if (!isOpen()) throw new ClosedChannelException();
+        return position;
+    }
+
+    @Override
+    public SeekableByteChannel position(long newPosition) throws IOException {
+        if (!isOpen()) throw new ClosedChannelException();
+        if (newPosition < 0) throw new IllegalArgumentException("Negative position");
+        position = newPosition;
+        return this;
+    }
+
+    /**
+     * @return Size of the plaintext
+     */
+    @Override
+    public long size() throws IOException {
+        if (!isOpen()) throw new ClosedChannelException();
+        return size;
+    }
+
+    @Override
+    public SeekableByteChannel truncate(long size) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return file.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+}
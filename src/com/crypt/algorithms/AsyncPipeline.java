@@ -0,0 +1,153 @@
+package com.crypt.algorithms;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Read, transform and write pipeline over AsynchronousFileChannels. Reads are issued ahead into free buffers,
+ * the calling thread transforms the buffers in file order, and each buffer is written back asynchronously and
+ * returned to the free list once its write completes. With a fixed number of buffers, a slow disk holds back the
+ * cipher and a slow cipher holds back the reads, so the disk and the cipher both stay busy.
+ */
+class AsyncPipeline {
+
+    /**
+     * Transforms one buffer in place between its position and limit, leaving both unchanged.
+     * Buffers are passed in file order.
+     */
+    interface Transform {
+        void apply(ByteBuffer buffer) throws GeneralSecurityException;
+    }
+
+    private final int bufferSize;
+    private final int inFlight;
+
+    /**
+     * @param bufferSize Bytes per buffer. Must be a multiple of the block size of the transform.
+     * @param inFlight Number of buffers, which bounds the reads and writes outstanding at once
+     */
+    AsyncPipeline(int bufferSize, int inFlight) {
+        if (bufferSize < 1 || inFlight < 1) throw new IllegalArgumentException("Pipeline needs at least one buffer");
+        this.bufferSize = bufferSize;
+        this.inFlight = inFlight;
+    }
+
+    /**
+     * Streams bytes [0, length) of in through transform and writes them to the same offsets of out.
+     * Returns once every write has completed.
+     */
+    void run(AsynchronousFileChannel in, AsynchronousFileChannel out, long length, Transform transform)
+            throws IOException, GeneralSecurityException, InterruptedException {
+
+        BlockingQueue<ByteBuffer> free = new ArrayBlockingQueue<>(inFlight);
+        for (int i = 0; i < inFlight; i++) free.add(ByteBuffer.allocateDirect(bufferSize));
+
+        AtomicReference<Throwable> writeError = new AtomicReference<>();
+        ArrayDeque<Read> reads = new ArrayDeque<>();
+        ByteBuffer current = null;
+        long nextRead = 0;
+
+        try {
+            while ((nextRead < length || !reads.isEmpty()) && writeError.get() == null) {
+
+                // Read ahead into every free buffer
+                ByteBuffer buffer;
+                while (nextRead < length && (buffer = free.poll()) != null) {
+                    reads.add(new Read(in, buffer, nextRead, (int) Math.min(bufferSize, length - nextRead)));
+                    nextRead += bufferSize;
+                }
+
+                Read read = reads.poll();
+                if (read == null) {
+                    // Every buffer is waiting on a write
+                    free.put(free.take());
+                    continue;
+                }
+
+                current = read.buffer;
+                read.await();
+                transform.apply(current);
+                write(out, current, read.position, free, writeError);
+                current = null;
+            }
+        } catch (ExecutionException e) {
+            throw new IOException("Read failed", e.getCause());
+        } finally {
+            // Wait for everything still in flight, so no write lands after the caller closes or deletes out
+            if (current != null) free.add(current);
+            for (Read read : reads) {
+                try {
+                    read.await();
+                } catch (ExecutionException ignored) { }
+                free.add(read.buffer);
+            }
+            for (int i = 0; i < inFlight; i++) free.take();
+        }
+
+        Throwable error = writeError.get();
+        if (error != null) throw new IOException("Write failed", error);
+    }
+
+    /**
+     * Writes all of buffer at position, then hands the buffer back to free
+     */
+    private static void write(AsynchronousFileChannel out, ByteBuffer buffer, long position,
+                              BlockingQueue<ByteBuffer> free, AtomicReference<Throwable> error) {
+        out.write(buffer, position, position, new CompletionHandler<Integer, Long>() {
+            @Override
+            public void completed(Integer written, Long start) {
+                if (buffer.hasRemaining()) {
+                    out.write(buffer, start + buffer.position(), start, this);
+                } else {
+                    buffer.clear();
+                    free.add(buffer);
+                }
+            }
+
+            @Override
+            public void failed(Throwable e, Long start) {
+                error.compareAndSet(null, e);
+                buffer.clear();
+                free.add(buffer);
+            }
+        });
+    }
+
+    /**
+     * An outstanding read of one buffer
+     */
+    private static final class Read {
+
+        private final AsynchronousFileChannel in;
+        private final ByteBuffer buffer;
+        private final long position;
+        private Future<Integer> pending;
+
+        Read(AsynchronousFileChannel in, ByteBuffer buffer, long position, int length) {
+            this.in = in;
+            this.buffer = buffer;
+            this.position = position;
+            buffer.clear();
+            buffer.limit(length);
+            this.pending = in.read(buffer, position);
+        }
+
+        /**
+         * Waits for the read, leaving the buffer positioned at 0 with the data up to its limit
+         */
+        void await() throws InterruptedException, ExecutionException {
+            while (pending.get() != -1 && buffer.hasRemaining())
+                pending = in.read(buffer, position + buffer.position());
+            buffer.flip();
+        }
+    }
+}
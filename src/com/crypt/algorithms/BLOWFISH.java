@@ -7,175 +7,535 @@ import javax.crypto.NoSuchPaddingException;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
-import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
 
 // Implementation of the Blowfish algorithm
 public class BLOWFISH {
 
-    public enum Mode { ECB, CBC }
+    public enum Mode { ECB, CBC, CTR }
+
+    private static final int BLOCK_SIZE = BlowfishEngine.BLOCK_SIZE;
+
+    // Bytes read and written at once by serial decryption. Must be a multiple of the Blowfish block size.
+    private static final int STREAM_BUFFER_SIZE = 1 << 20;
+
+    // Buffers in flight in cryptPipelined, bounding how far reads run ahead of the cipher and writes lag behind it
+    private static final int PIPELINE_BUFFERS = 4;
+
+    // Bytes handled by a single fork-join task. Must be a multiple of the Blowfish block size.
+    private static final int CHUNK_SIZE = 4 << 20;
 
-    private static final int BLOCK_SIZE = 8;
-    private static int[] pKey = null;
-    private static int[][] sBox = null;
-    private static byte[] userIV = null;
+    private static final ThreadLocal<ByteBuffer> chunkBuffer = ThreadLocal.withInitial(() -> ByteBuffer.allocate(CHUNK_SIZE));
 
     public static void crypt(String filePath, byte[] key, boolean isEncryption, Mode mode, byte[] initVector) {
-        CipherFile file;
+        crypt(filePath, key, isEncryption, mode, initVector, ForkJoinPool.getCommonPoolParallelism());
+    }
+
+    /**
+     * Encrypts or decrypts a file using Blowfish. The file is written as [data][IV]. In ECB and CBC the plaintext
+     * is padded using PKCS#5, in CTR the IV is the initial counter and the data is the same length as the plaintext.
+     * @param filePath Path of the file
+     * @param key Key of 1 or more bytes
+     * @param isEncryption Whether to encrypt or decrypt the file
+     * @param mode Mode of operation
+     * @param initVector IV to use in CBC and CTR mode, or null for a random one
+     * @param parallelism Number of threads. CBC encryption is always serial, since every block depends on the last.
+     */
+    public static void crypt(String filePath, byte[] key, boolean isEncryption, Mode mode, byte[] initVector,
+                             int parallelism) {
         try {
-            file = new CipherFile(filePath, BLOCK_SIZE, isEncryption);
-        } catch (IOException e) {
-            System.out.println("Couldn't read file " + filePath);
+            cryptFile(filePath, key, isEncryption, mode, initVector, parallelism);
+        } catch (IOException | GeneralSecurityException e) {
+            System.out.println(isEncryption ? "Encryption failed" : "Decryption failed");
             e.printStackTrace();
-            return;
-        } catch (IllegalBlockSizeException ignored) { return; }
+        }
+    }
 
-        if (pKey == null || sBox == null) doKeySchedule(key);
-        if (mode == Mode.CBC && initVector != null) userIV = initVector;
+    /**
+     * Same as crypt, but a failure is thrown instead of printed. The original file is left as it was.
+     */
+    public static void cryptFile(String filePath, byte[] key, boolean isEncryption, Mode mode, byte[] initVector,
+                                 int parallelism) throws IOException, GeneralSecurityException {
+        if (mode == Mode.CTR)
+            cryptCTR(filePath, key, isEncryption, initVector, parallelism);
+        else if (parallelism > 1 && (!isEncryption || mode == Mode.ECB))
+            cryptParallel(filePath, key, isEncryption, mode, initVector, parallelism);
+        else if (isEncryption)
+            encrypt(filePath, key, mode, initVector);
+        else
+            decrypt(filePath, key, mode, initVector);
+    }
 
-        byte[] IV = userIV == null ?
-                (isEncryption ? Utilities.getIV(BLOCK_SIZE) : file.readDataAtOffset(BLOCK_SIZE, true, BLOCK_SIZE))
-                :
-                userIV;
+    private static void encrypt(String filePath, byte[] key, Mode mode, byte[] initVector)
+            throws IOException, GeneralSecurityException {
+        CipherFile file = new CipherFile(filePath, BLOCK_SIZE, true);
+
+        try {
+            BlowfishEngine engine = BlowfishKey.of(key).engine();
+
+            byte[] IV = (mode != Mode.CBC || initVector == null) ? Utilities.getIV(BLOCK_SIZE) : initVector;
 
-        if (isEncryption) {
             file.pad();
-            byte[] lastBlock = IV;
-            while (file.hasNext()) {
-                byte[] block = file.nextBlock(true);
-                if (mode == Mode.CBC) {
-                    for(int i = 0; i < block.length; i++)
-                        block[i] ^= lastBlock[i];
-                }
-                lastBlock = encrypt(block);
-                file.writeDataAtOffset(lastBlock, file.getCurrentPos() - BLOCK_SIZE, false);
-            }
+
+            // Runs straight over the mapped file with the MAPPED backend
+            long[] chain = {byteBlockToLong(IV)};
+            file.transform(0, file.getLength(), (in, out) -> {
+                if (mode == Mode.CBC) chain[0] = engine.encryptCBC(in, out, chain[0]);
+                else engine.encrypt(in, out);
+            });
             file.writeDataEOF(IV);
+        } catch (IOException | RuntimeException e) {
+            file.abort();
+            throw e;
+        }
 
-        } else {
-            file.truncate(BLOCK_SIZE); //clear IV
+        file.commit();
+    }
 
-            byte[] block, lastBlock, nextBlock;
-            boolean finalBlock = false;
+    /**
+     * Decrypts the file front to back in buffered sequential reads and writes. The last ciphertext block of each
+     * buffer is carried over to continue the CBC chain into the next one.
+     */
+    private static void decrypt(String filePath, byte[] key, Mode mode, byte[] initVector)
+            throws IOException, GeneralSecurityException {
 
-            nextBlock = file.nextBlock(false);
+        Path source = Paths.get(filePath);
+        Path target = Paths.get(Utilities.setNormalExtension(filePath));
 
-            while (!finalBlock && nextBlock != null) {
-                block = nextBlock;
-                lastBlock = decrypt(block);
+        BlowfishEngine engine = BlowfishKey.of(key).engine();
+        Path temp = null;
 
-                if (file.hasNext())
-                    nextBlock = file.nextBlock(false);
-                else {
-                    nextBlock = IV;
-                    finalBlock = true;
-                }
+        try {
+            temp = Utilities.createSiblingTempFile(target);
+            try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+                 FileChannel out = FileChannel.open(temp, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+
+                long dataSize = dataSize(in);
+                long chain = byteBlockToLong(readIV(in, dataSize, mode, initVector));
+
+                ByteBuffer buffer = ByteBuffer.allocate(STREAM_BUFFER_SIZE);
+                long position = 0;
+
+                while (position < dataSize) {
+                    buffer.clear();
+                    buffer.limit((int) Math.min(buffer.capacity(), dataSize - position));
+                    Utilities.readFully(in, buffer, position);
+                    buffer.flip();
 
-                if (mode == Mode.CBC) {
-                    for (int i = 0; i < block.length; i++)
-                        block[i] ^= nextBlock[i];
+                    ByteBuffer result = buffer.duplicate();
+                    if (mode == Mode.CBC) chain = engine.decryptCBC(buffer, result, chain);
+                    else engine.decrypt(buffer, result);
+
+                    result.flip();
+                    position += result.remaining();
+                    Utilities.writeFully(out, result);
                 }
 
-                if (finalBlock)
-                    file.writeDataAtOffset(lastBlock, (file.getCurrentPos())+lastBlock.length, true);
-                else
-                file.writeDataAtOffset(lastBlock, (file.getCurrentPos()-8)+lastBlock.length, true);
+                unpad(out, dataSize);
             }
 
-            file.unpad();
+            Utilities.commitFile(temp, target, source);
+
+        } finally {
+            if (temp != null) Utilities.deleteFile(temp.toString());
         }
+    }
 
-        if(!file.finish())
-            System.out.println("Failed to write to file.");
+    /**
+     * ECB or CBC encryption or decryption through an AsyncPipeline, so reading, the cipher and writing overlap
+     * instead of taking turns. Output is identical to crypt.
+     */
+    public static void cryptPipelined(String filePath, byte[] key, boolean isEncryption, Mode mode,
+                                      byte[] initVector) {
+        try {
+            cryptFilePipelined(filePath, key, isEncryption, mode, initVector);
+        } catch (IOException | GeneralSecurityException e) {
+            System.out.println(isEncryption ? "Encryption failed" : "Decryption failed");
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.out.println(isEncryption ? "Encryption interrupted" : "Decryption interrupted");
+        }
     }
 
-    private static byte[] encrypt(byte[] block) {
-        long in = byteBlockToLong(block);
+    /**
+     * Same as cryptPipelined, but a failure is thrown instead of printed. The original file is left as it was.
+     */
+    public static void cryptFilePipelined(String filePath, byte[] key, boolean isEncryption, Mode mode,
+                                          byte[] initVector)
+            throws IOException, GeneralSecurityException, InterruptedException {
+        if (mode == Mode.CTR) throw new IllegalArgumentException("CTR is already parallel, use crypt");
+
+        Path source = Paths.get(filePath);
+        Path target = Paths.get(isEncryption ?
+                Utilities.setEncryptedExtension(filePath)
+                :
+                Utilities.setNormalExtension(filePath));
 
-        int L = (int) (in >>> 32);
-        int R = (int) (in & 0xFFFFFFFFL);
+        BlowfishEngine engine = BlowfishKey.of(key).engine();
+        AsyncPipeline pipeline = new AsyncPipeline(STREAM_BUFFER_SIZE, PIPELINE_BUFFERS);
+        Path temp = null;
 
-        //do 16 rounds
-        for (int i = 0 ; i < 16 ; i += 2) {
-            L ^= pKey[i];
-            R ^= f(L);
-            R ^= pKey[i+1];
-            L ^= f(R);
-        }
-        L ^= pKey[16];
-        R ^= pKey[17];
+        try {
+            temp = Utilities.createSiblingTempFile(target);
+            try (AsynchronousFileChannel in = AsynchronousFileChannel.open(source, StandardOpenOption.READ);
+                 AsynchronousFileChannel out = AsynchronousFileChannel.open(temp, StandardOpenOption.WRITE)) {
+
+                // The CBC chain carried from one buffer to the next
+                long[] chain = new long[1];
+
+                if (isEncryption) {
+                    byte[] IV = (mode != Mode.CBC || initVector == null) ? Utilities.getIV(BLOCK_SIZE) : initVector;
+                    chain[0] = byteBlockToLong(IV);
+
+                    // Whole blocks go through the pipeline, the padded last block and the IV are written after them
+                    long size = in.size();
+                    long wholeBlocks = size - size % BLOCK_SIZE;
+                    pipeline.run(in, out, wholeBlocks, buffer -> {
+                        if (mode == Mode.CBC) chain[0] = engine.encryptCBC(buffer.duplicate(), buffer.duplicate(), chain[0]);
+                        else engine.encrypt(buffer.duplicate(), buffer.duplicate());
+                    });
+
+                    ByteBuffer last = ByteBuffer.allocate(BLOCK_SIZE);
+                    while (last.hasRemaining() && in.read(last, wholeBlocks + last.position()).get() > 0);
+                    byte padding = (byte) last.remaining();
+                    while (last.hasRemaining()) last.put(padding);
+                    last.flip();
+
+                    ByteBuffer trailer = ByteBuffer.allocate(2 * BLOCK_SIZE);
+                    if (mode == Mode.CBC) engine.encryptCBC(last, trailer, chain[0]);
+                    else engine.encrypt(last, trailer);
+                    trailer.put(IV);
+                    trailer.flip();
+                    while (trailer.hasRemaining()) out.write(trailer, wholeBlocks + trailer.position()).get();
+
+                } else {
+                    long dataSize = in.size() - BLOCK_SIZE;
+                    if (dataSize < BLOCK_SIZE || dataSize % BLOCK_SIZE != 0)
+                        throw new IllegalBlockSizeException("File is not a multiple of the Blowfish block size");
+
+                    byte[] IV = initVector;
+                    if (mode != Mode.CBC || IV == null) {
+                        IV = new byte[BLOCK_SIZE];
+                        ByteBuffer read = ByteBuffer.wrap(IV);
+                        while (read.hasRemaining() && in.read(read, dataSize + read.position()).get() > 0);
+                    }
+                    chain[0] = byteBlockToLong(IV);
+
+                    pipeline.run(in, out, dataSize, buffer -> {
+                        if (mode == Mode.CBC) chain[0] = engine.decryptCBC(buffer.duplicate(), buffer.duplicate(), chain[0]);
+                        else engine.decrypt(buffer.duplicate(), buffer.duplicate());
+                    });
+                }
+            }
 
-        // rebuild and return block with L and R swapped
-        return longToByteBlock(((long)R << 32 | (long)L));
-    }
+            if (!isEncryption) {
+                try (FileChannel out = FileChannel.open(temp, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                    unpad(out, out.size());
+                }
+            }
 
-    private static long encrypt(long block) {
-        return byteBlockToLong(encrypt(longToByteBlock(block)));
+            Utilities.commitFile(temp, target, source);
+
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        } finally {
+            if (temp != null) Utilities.deleteFile(temp.toString());
+        }
     }
 
-    private static byte[] decrypt(byte[] block) {
-        long in = byteBlockToLong(block);
+    /**
+     * ECB encryption and ECB or CBC decryption split across a fork-join pool. ECB blocks are independent, and a CBC
+     * plaintext block depends only on its own ciphertext block and the one before it, so each chunk is handled
+     * separately, starting from the last ciphertext block of the chunk before it. Output is identical to the serial path.
+     */
+    private static void cryptParallel(String filePath, byte[] key, boolean isEncryption, Mode mode, byte[] initVector,
+                                      int parallelism) throws IOException, GeneralSecurityException {
+
+        Path source = Paths.get(filePath);
+        Path target = Paths.get(isEncryption ?
+                Utilities.setEncryptedExtension(filePath)
+                :
+                Utilities.setNormalExtension(filePath));
 
-        int L = (int) (in >>> 32);
-        int R = (int) (in & 0xFFFFFFFFL);
+        BlowfishEngine engine = BlowfishKey.of(key).engine();
+        Path temp = null;
 
-        for (int i=16 ; i > 0 ; i -= 2) {
-            L ^= pKey[i+1];
-            R ^= f(L);
-            R ^= pKey[i];
-            L ^= f(R);
-        }
-        L ^= pKey[1];
-        R ^= pKey[0];
+        try {
+            temp = Utilities.createSiblingTempFile(target);
+            try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+                 FileChannel out = FileChannel.open(temp, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+
+                if (isEncryption) {
+                    // Only ECB gets here. Whole blocks are encrypted in parallel, the padded last block after them.
+                    long size = in.size();
+                    long wholeBlocks = size - size % BLOCK_SIZE;
+                    cryptChunks(in, out, engine, true, mode, 0, wholeBlocks, parallelism);
+
+                    ByteBuffer last = ByteBuffer.allocate(BLOCK_SIZE);
+                    Utilities.readFully(in, last, wholeBlocks);
+                    byte padding = (byte) last.remaining();
+                    while (last.hasRemaining()) last.put(padding);
+                    last.flip();
+
+                    ByteBuffer trailer = ByteBuffer.allocate(2 * BLOCK_SIZE);
+                    engine.encrypt(last, trailer);
+                    trailer.put(Utilities.getIV(BLOCK_SIZE));
+                    trailer.flip();
+                    Utilities.writeFully(out, trailer, wholeBlocks);
+
+                } else {
+                    long dataSize = dataSize(in);
+                    byte[] IV = readIV(in, dataSize, mode, initVector);
+                    cryptChunks(in, out, engine, false, mode, byteBlockToLong(IV), dataSize, parallelism);
+                    unpad(out, dataSize);
+                }
+            }
 
-        // rebuild and return block with L and R swapped
-        return longToByteBlock(((long)R << 32 | (long)L));
-    }
+            Utilities.commitFile(temp, target, source);
 
-    private static long decrypt(long block) {
-        return byteBlockToLong(decrypt(longToByteBlock(block)));
+        } finally {
+            if (temp != null) Utilities.deleteFile(temp.toString());
+        }
     }
 
-    private static int f(int x) {
-        // Java handles overflow addition as modulo 2^32, so we don't need to manually
-        int h = sBox[0][x >>> 24] + sBox[1][(x >>> 16) & 0xFF];
-        return (h ^ S[2][(x >>> 8) & 0xFF]) + S[3][x & 0xFF];
+    /**
+     * Counter mode. Block n of the file is XORed with the encryption of the 64-bit counter IV + n, so every chunk
+     * is computed independently and no padding is needed.
+     */
+    private static void cryptCTR(String filePath, byte[] key, boolean isEncryption, byte[] initVector,
+                                 int parallelism) throws IOException, GeneralSecurityException {
+
+        Path source = Paths.get(filePath);
+        Path target = Paths.get(isEncryption ?
+                Utilities.setEncryptedExtension(filePath)
+                :
+                Utilities.setNormalExtension(filePath));
+
+        BlowfishEngine engine = BlowfishKey.of(key).engine();
+        Path temp = null;
+
+        try {
+            temp = Utilities.createSiblingTempFile(target);
+            try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+                 FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+
+                long dataSize;
+                byte[] IV = initVector;
+
+                if (isEncryption) {
+                    dataSize = in.size();
+                    if (IV == null) IV = Utilities.getIV(BLOCK_SIZE);
+                } else {
+                    // Read the initial counter from the EOF. Everything before it is ciphertext.
+                    dataSize = in.size() - BLOCK_SIZE;
+                    if (dataSize < 0) throw new IllegalBlockSizeException("File is missing its counter block");
+
+                    if (IV == null) {
+                        IV = new byte[BLOCK_SIZE];
+                        Utilities.readFully(in, ByteBuffer.wrap(IV), dataSize);
+                    }
+                }
+
+                long counter = byteBlockToLong(IV);
+                long chunks = (dataSize + CHUNK_SIZE - 1) / CHUNK_SIZE;
+                ChunkTask.run(chunk -> {
+                    long start = chunk * CHUNK_SIZE;
+                    int length = (int) (Math.min(start + CHUNK_SIZE, dataSize) - start);
+
+                    ByteBuffer data = chunkBuffer.get();
+                    data.clear();
+                    data.limit(length);
+                    Utilities.readFully(in, data, start);
+                    data.flip();
+
+                    applyCounter(engine, data, length, counter + start / BLOCK_SIZE);
+                    Utilities.writeFully(out, data, start);
+                }, 0, chunks, parallelism);
+
+                if (isEncryption)
+                    Utilities.writeFully(out, ByteBuffer.wrap(IV), dataSize);
+            }
+
+            Utilities.commitFile(temp, target, source);
+
+        } finally {
+            if (temp != null) Utilities.deleteFile(temp.toString());
+        }
     }
 
-    private static void doKeySchedule(byte[] key) {
-        // init boxes
-        pKey = Arrays.copyOf(P, P.length);
-        sBox = new int[S.length][];
-        for (int i = 0; i < sBox.length; i++) sBox[i] = Arrays.copyOf(S[i], S[i].length);
-
-        // XOR p-boxes with KEY
-        for (byte i = 0, keypos = 0; i < pKey.length; i++) {
-            // break P ints into 4 bytes
-            int pC = pKey[i];
-            for (byte j = 0; j < Integer.BYTES; j++, keypos%=key.length)
-                pC = pC << 8 | Byte.toUnsignedInt(key[keypos++]);
-            pKey[i] ^= pC;
+    /**
+     * XORs data[0, length) with the counter mode keystream, starting at counter block
+     */
+    private static void applyCounter(BlowfishEngine engine, ByteBuffer data, int length, long block) {
+        int end = length - length % BLOCK_SIZE;
+        for (int i = 0; i < end; i += BLOCK_SIZE)
+            data.putLong(i, data.getLong(i) ^ engine.encryptBlock(block++));
+
+        // A partial last block uses the leading bytes of its keystream block
+        if (end < length) {
+            long keyStream = engine.encryptBlock(block);
+            for (int i = end; i < length; i++)
+                data.put(i, (byte) (data.get(i) ^ (keyStream >>> (56 - 8 * (i - end)))));
         }
+    }
 
-        long zeroE = 0;
-        // Replace P[n] with L zE and P[n+1] with R zE
-        for (int i = 0; i < pKey.length / 2; i++) {
-            zeroE = encrypt(zeroE);
-            pKey[i*2] = (int) (zeroE >>> 32); // get left bits
-            pKey[i*2 + 1] = (int) (zeroE & 0xFFFFFFFFL); //get right bits (unsigned)
+    /**
+     * Encrypts or decrypts a stream, e.g. standard input to standard output. A stream can not be rewound to read
+     * a trailer, so the IV comes first: [IV][data], with the same padding rules as files. Output is written one
+     * buffer at a time. When decrypting ECB or CBC only the last block is held back, to remove its padding.
+     * @param in Plaintext or ciphertext
+     * @param out Receives the result
+     * @param key Key of 1 or more bytes
+     * @param isEncryption Whether to encrypt or decrypt the stream
+     * @param mode Mode of operation
+     */
+    public static void crypt(InputStream in, OutputStream out, byte[] key, boolean isEncryption, Mode mode)
+            throws IOException, GeneralSecurityException {
+
+        BlowfishEngine engine = BlowfishKey.of(key).engine();
+        PushbackInputStream input = new PushbackInputStream(in, 1);
+
+        byte[] IV = new byte[BLOCK_SIZE];
+        if (isEncryption) {
+            IV = Utilities.getIV(BLOCK_SIZE);
+            out.write(IV);
+        } else if (Utilities.readFully(input, IV, 0, BLOCK_SIZE) != BLOCK_SIZE) {
+            throw new IllegalBlockSizeException("Stream is missing its IV");
         }
-        // Same for S boxes
-        for (int i = 0; i < sBox.length; i++) {
-            for (int j = 0; j < sBox[i].length / 2; j++) {
-                zeroE = encrypt(zeroE);
-                sBox[i][j * 2] = (int) (zeroE >>> 32); // get left bits
-                sBox[i][j * 2 + 1] = (int) (zeroE & 0xFFFFFFFFL); //get right bits (unsigned)
+
+        // Room for a block of padding after a full buffer
+        byte[] data = new byte[STREAM_BUFFER_SIZE + BLOCK_SIZE];
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        long chain = byteBlockToLong(IV);
+        long block = chain;
+
+        while (true) {
+            int length = Utilities.readFully(input, data, 0, STREAM_BUFFER_SIZE);
+            boolean last = length < STREAM_BUFFER_SIZE || Utilities.atEnd(input);
+
+            if (mode == Mode.CTR) {
+                applyCounter(engine, buffer, length, block);
+                block += length / BLOCK_SIZE;
+                out.write(data, 0, length);
+                if (last) break;
+                continue;
+            }
+
+            if (last && isEncryption) {
+                int padding = BLOCK_SIZE - length % BLOCK_SIZE;
+                Arrays.fill(data, length, length + padding, (byte) padding);
+                length += padding;
             }
+            if (length % BLOCK_SIZE != 0 || (last && !isEncryption && length == 0))
+                throw new IllegalBlockSizeException("Stream is not a multiple of the Blowfish block size");
+
+            buffer.clear().limit(length);
+            ByteBuffer result = buffer.duplicate();
+            if (isEncryption && mode == Mode.CBC) chain = engine.encryptCBC(buffer, result, chain);
+            else if (isEncryption) engine.encrypt(buffer, result);
+            else if (mode == Mode.CBC) chain = engine.decryptCBC(buffer, result, chain);
+            else engine.decrypt(buffer, result);
+
+            if (last && !isEncryption) length -= padding(data, length);
+            out.write(data, 0, length);
+            if (last) break;
         }
+        out.flush();
+    }
+
+    /**
+     * Verifies the PKCS#5 padding of the block ending at data[end]
+     * @return Number of padding bytes
+     */
+    private static int padding(byte[] data, int end) throws BadPaddingException {
+        int padding = data[end - 1];
+        if (padding < 1 || padding > BLOCK_SIZE)
+            throw new BadPaddingException("File was not padded correctly");
+        for (int i = end - padding; i < end; i++)
+            if (data[i] != padding) throw new BadPaddingException("File was not padded correctly");
+        return padding;
     }
 
+    /**
+     * @return Size of the ciphertext of an ECB or CBC file, which is followed by the IV
+     */
+    private static long dataSize(FileChannel in) throws IOException, IllegalBlockSizeException {
+        long dataSize = in.size() - BLOCK_SIZE;
+        if (dataSize < BLOCK_SIZE || dataSize % BLOCK_SIZE != 0)
+            throw new IllegalBlockSizeException("File is not a multiple of the Blowfish block size");
+        return dataSize;
+    }
+
+    /**
+     * @return initVector in CBC mode if one was given, otherwise the IV stored after the ciphertext
+     */
+    private static byte[] readIV(FileChannel in, long dataSize, Mode mode, byte[] initVector) throws IOException {
+        if (mode == Mode.CBC && initVector != null) return initVector;
+
+        byte[] IV = new byte[BLOCK_SIZE];
+        Utilities.readFully(in, ByteBuffer.wrap(IV), dataSize);
+        return IV;
+    }
+
+    /**
+     * Verifies the PKCS#5 padding at the end of the decrypted data and truncates it
+     */
+    private static void unpad(FileChannel out, long dataSize) throws IOException, BadPaddingException {
+        byte[] last = new byte[BLOCK_SIZE];
+        Utilities.readFully(out, ByteBuffer.wrap(last), dataSize - BLOCK_SIZE);
+        out.truncate(dataSize - padding(last, BLOCK_SIZE));
+    }
+
+    /**
+     * Encrypts or decrypts bytes [0, end) of in to the same offsets of out, one fork-join task per chunk
+     */
+    private static void cryptChunks(FileChannel in, FileChannel out, BlowfishEngine engine, boolean isEncryption,
+                                    Mode mode, long iv, long end, int parallelism)
+            throws IOException, GeneralSecurityException {
+        long chunks = (end + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        ChunkTask.run(chunk -> {
+            long start = chunk * CHUNK_SIZE;
+            int length = (int) (Math.min(start + CHUNK_SIZE, end) - start);
+
+            ByteBuffer data = chunkBuffer.get();
+            data.clear();
+            data.limit(length);
+            Utilities.readFully(in, data, start);
+            data.flip();
+
+            // Blocks are written back over themselves, so the output is a second view of the same buffer
+            ByteBuffer result = data.duplicate();
+            if (isEncryption) {
+                engine.encrypt(data, result);
+            } else if (mode == Mode.ECB) {
+                engine.decrypt(data, result);
+            } else {
+                // The ciphertext block before the chunk continues the chain
+                ByteBuffer previous = ByteBuffer.allocate(BLOCK_SIZE);
+                if (start > 0) Utilities.readFully(in, previous, start - BLOCK_SIZE);
+                engine.decryptCBC(data, result, start > 0 ? previous.getLong(0) : iv);
+            }
+
+            result.flip();
+            Utilities.writeFully(out, result, start);
+        }, 0, chunks, parallelism);
+    }
 
     public static byte[] longToByteBlock(long lng) {
         byte[] bytes = new byte[8];
@@ -218,7 +578,7 @@ public class BLOWFISH {
             byte[] iv = IV == null ?
                     Utilities.getIV(BLOCK_SIZE)
                     :
-                    userIV;
+                    IV;
 
             SecretKeySpec keySpec = new SecretKeySpec(key, "Blowfish");
             IvParameterSpec ivSpec = new IvParameterSpec(iv);
@@ -0,0 +1,202 @@
+package com.crypt.algorithms;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Blowfish block engine for a single key. Blocks are handled as longs, read and written big-endian,
+ * so processing arrays or buffers of blocks allocates nothing per block. The key schedule is computed
+ * once in the constructor and never changes, so one engine can be shared between threads.
+ */
+public class BlowfishEngine {
+
+    public static final int BLOCK_SIZE = 8;
+
+    private static final int ROUNDS = 16;
+
+    private final int[] P = new int[ROUNDS + 2];
+
+    // The four S-boxes in one array, box n starting at n * 256
+    private final int[] S = new int[4 * 256];
+
+    /**
+     * Runs the Blowfish key schedule
+     * @param key 1 or more bytes, repeated over the P-array
+     */
+    public BlowfishEngine(byte[] key) {
+        System.arraycopy(BLOWFISH.P, 0, P, 0, P.length);
+        for (int i = 0; i < BLOWFISH.S.length; i++)
+            System.arraycopy(BLOWFISH.S[i], 0, S, i * 256, 256);
+
+        // XOR P-array with the key, 4 bytes at a time
+        for (int i = 0, keyPos = 0; i < P.length; i++) {
+            int k = 0;
+            for (int j = 0; j < Integer.BYTES; j++) {
+                k = k << 8 | (key[keyPos] & 0xFF);
+                keyPos = (keyPos + 1) % key.length;
+            }
+            P[i] ^= k;
+        }
+
+        // Replace P and then S with the repeated encryption of the zero block
+        long block = 0;
+        for (int i = 0; i < P.length; i += 2) {
+            block = encryptBlock(block);
+            P[i] = (int) (block >>> 32);
+            P[i + 1] = (int) block;
+        }
+        for (int i = 0; i < S.length; i += 2) {
+            block = encryptBlock(block);
+            S[i] = (int) (block >>> 32);
+            S[i + 1] = (int) block;
+        }
+    }
+
+    public long encryptBlock(long block) {
+        int L = (int) (block >>> 32);
+        int R = (int) block;
+
+        for (int i = 0; i < ROUNDS; i += 2) {
+            L ^= P[i];
+            R ^= f(L);
+            R ^= P[i + 1];
+            L ^= f(R);
+        }
+        L ^= P[ROUNDS];
+        R ^= P[ROUNDS + 1];
+
+        // rebuild block with L and R swapped
+        return (long) R << 32 | (L & 0xFFFFFFFFL);
+    }
+
+    public long decryptBlock(long block) {
+        int L = (int) (block >>> 32);
+        int R = (int) block;
+
+        for (int i = ROUNDS; i > 0; i -= 2) {
+            L ^= P[i + 1];
+            R ^= f(L);
+            R ^= P[i];
+            L ^= f(R);
+        }
+        L ^= P[1];
+        R ^= P[0];
+
+        return (long) R << 32 | (L & 0xFFFFFFFFL);
+    }
+
+    private int f(int x) {
+        // Java handles overflow addition as modulo 2^32
+        int h = S[x >>> 24] + S[256 | (x >>> 16) & 0xFF];
+        return (h ^ S[512 | (x >>> 8) & 0xFF]) + S[768 | x & 0xFF];
+    }
+
+    /**
+     * ECB encrypts blocks[from, to) in place
+     */
+    public void encrypt(long[] blocks, int from, int to) {
+        for (int i = from; i < to; i++)
+            blocks[i] = encryptBlock(blocks[i]);
+    }
+
+    /**
+     * ECB decrypts blocks[from, to) in place
+     */
+    public void decrypt(long[] blocks, int from, int to) {
+        for (int i = from; i < to; i++)
+            blocks[i] = decryptBlock(blocks[i]);
+    }
+
+    /**
+     * CBC encrypts blocks[from, to) in place
+     * @param iv The IV, or the last ciphertext block of the previous call
+     * @return The last ciphertext block, to continue the chain
+     */
+    public long encryptCBC(long[] blocks, int from, int to, long iv) {
+        long last = iv;
+        for (int i = from; i < to; i++)
+            last = blocks[i] = encryptBlock(blocks[i] ^ last);
+        return last;
+    }
+
+    /**
+     * CBC decrypts blocks[from, to) in place
+     * @param iv The IV, or the last ciphertext block of the previous call
+     * @return The last ciphertext block, to continue the chain
+     */
+    public long decryptCBC(long[] blocks, int from, int to, long iv) {
+        long last = iv;
+        for (int i = from; i < to; i++) {
+            long cipherText = blocks[i];
+            blocks[i] = decryptBlock(cipherText) ^ last;
+            last = cipherText;
+        }
+        return last;
+    }
+
+    /**
+     * ECB encrypts every whole block that fits in both in and out, advancing both positions
+     * @return Number of blocks processed
+     */
+    public int encrypt(ByteBuffer in, ByteBuffer out) {
+        int blocks = blocks(in, out);
+        for (int i = 0; i < blocks; i++)
+            putBlock(out, encryptBlock(getBlock(in)));
+        return blocks;
+    }
+
+    /**
+     * ECB decrypts every whole block that fits in both in and out, advancing both positions
+     * @return Number of blocks processed
+     */
+    public int decrypt(ByteBuffer in, ByteBuffer out) {
+        int blocks = blocks(in, out);
+        for (int i = 0; i < blocks; i++)
+            putBlock(out, decryptBlock(getBlock(in)));
+        return blocks;
+    }
+
+    /**
+     * CBC encrypts every whole block that fits in both in and out, advancing both positions
+     * @param iv The IV, or the last ciphertext block of the previous call
+     * @return The last ciphertext block, to continue the chain
+     */
+    public long encryptCBC(ByteBuffer in, ByteBuffer out, long iv) {
+        long last = iv;
+        int blocks = blocks(in, out);
+        for (int i = 0; i < blocks; i++) {
+            last = encryptBlock(getBlock(in) ^ last);
+            putBlock(out, last);
+        }
+        return last;
+    }
+
+    /**
+     * CBC decrypts every whole block that fits in both in and out, advancing both positions
+     * @param iv The IV, or the last ciphertext block of the previous call
+     * @return The last ciphertext block, to continue the chain
+     */
+    public long decryptCBC(ByteBuffer in, ByteBuffer out, long iv) {
+        long last = iv;
+        int blocks = blocks(in, out);
+        for (int i = 0; i < blocks; i++) {
+            long cipherText = getBlock(in);
+            putBlock(out, decryptBlock(cipherText) ^ last);
+            last = cipherText;
+        }
+        return last;
+    }
+
+    private static int blocks(ByteBuffer in, ByteBuffer out) {
+        return Math.min(in.remaining(), out.remaining()) / BLOCK_SIZE;
+    }
+
+    private static long getBlock(ByteBuffer in) {
+        long block = in.getLong();
+        return in.order() == ByteOrder.BIG_ENDIAN ? block : Long.reverseBytes(block);
+    }
+
+    private static void putBlock(ByteBuffer out, long block) {
+        out.putLong(out.order() == ByteOrder.BIG_ENDIAN ? block : Long.reverseBytes(block));
+    }
+}
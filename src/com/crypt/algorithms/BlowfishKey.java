@@ -0,0 +1,69 @@
+package com.crypt.algorithms;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Immutable Blowfish key schedule. The schedule takes 521 block encryptions, so schedules are kept in a
+ * bounded least-recently-used cache keyed by the SHA-256 digest of the key, rather than the key itself,
+ * and computed once per key. Instances can be shared between threads.
+ */
+public final class BlowfishKey {
+
+    private static final int CACHE_SIZE = 64;
+
+    private static final Map<ByteBuffer, BlowfishKey> cache =
+            new LinkedHashMap<ByteBuffer, BlowfishKey>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<ByteBuffer, BlowfishKey> eldest) {
+                    return size() > CACHE_SIZE;
+                }
+            };
+
+    private final BlowfishEngine engine;
+
+    private BlowfishKey(byte[] key) {
+        this.engine = new BlowfishEngine(key);
+    }
+
+    /**
+     * Returns the schedule for key, computing it only if it is not cached
+     * @param key 1 or more bytes
+     */
+    public static BlowfishKey of(byte[] key) {
+        ByteBuffer digest = ByteBuffer.wrap(digest(key));
+
+        synchronized (cache) {
+            BlowfishKey schedule = cache.get(digest);
+            if (schedule != null) return schedule;
+        }
+
+        // Computed outside the lock so other keys are not held up. Two threads may both compute the same key,
+        // which is harmless since the results are equal.
+        BlowfishKey schedule = new BlowfishKey(key);
+
+        synchronized (cache) {
+            BlowfishKey existing = cache.putIfAbsent(digest, schedule);
+            return existing == null ? schedule : existing;
+        }
+    }
+
+    /**
+     * @return Engine that encrypts and decrypts with this schedule
+     */
+    public BlowfishEngine engine() {
+        return engine;
+    }
+
+    private static byte[] digest(byte[] key) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(key);
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.crypt.algorithms;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Fork-join task that runs an action on chunks [from, to) of a file, splitting the range in halves
+ * until a single chunk is left. Exceptions thrown by the action are rethrown wrapped in a CompletionException
+ * by ForkJoinPool.invoke.
+ */
+class ChunkTask extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    // Pools of other sizes than the common pool, by parallelism. Their threads are daemons and idle ones time out.
+    private static final Map<Integer, ForkJoinPool> pools = new ConcurrentHashMap<>();
+
+    /**
+     * Work done on one chunk of a file
+     */
+    interface ChunkAction {
+        void process(long chunk) throws IOException, GeneralSecurityException;
+    }
+
+    private final ChunkAction action;
+    private final long from;
+    private final long to;
+
+    ChunkTask(ChunkAction action, long from, long to) {
+        this.action = action;
+        this.from = from;
+        this.to = to;
+    }
+
+    /**
+     * Runs action on chunks [from, to) on a pool of parallelism threads. The pools live as long as the
+     * application, so the ciphers and buffers their threads cache are reused from file to file. With a parallelism
+     * of 1, or a single chunk, the chunks run in order on the calling thread instead, e.g. for a small file or when
+     * Main is already processing one file per core.
+     * @throws IOException or GeneralSecurityException thrown by the action
+     */
+    static void run(ChunkAction action, long from, long to, int parallelism)
+            throws IOException, GeneralSecurityException {
+        if (parallelism <= 1 || to - from <= 1) {
+            for (long chunk = from; chunk < to; chunk++)
+                action.process(chunk);
+            return;
+        }
+
+        try {
+            pool(parallelism).invoke(new ChunkTask(action, from, to));
+        } catch (CompletionException e) {
+            // Rethrown across threads the pool may wrap it again
+            Throwable cause = e;
+            while (cause instanceof CompletionException && cause.getCause() != null)
+                cause = cause.getCause();
+
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof GeneralSecurityException) throw (GeneralSecurityException) cause;
+            throw e;
+        }
+    }
+
+    /**
+     * @return The common pool if it has parallelism threads, otherwise a pool of parallelism threads shared by
+     * every call asking for that many
+     */
+    private static ForkJoinPool pool(int parallelism) {
+        if (parallelism == ForkJoinPool.getCommonPoolParallelism()) return ForkJoinPool.commonPool();
+        return pools.computeIfAbsent(parallelism, ForkJoinPool::new);
+    }
+
+    @Override
+    protected void compute() {
+        if (to - from > 1) {
+            long mid = (from + to) >>> 1;
+            invokeAll(new ChunkTask(action, from, mid), new ChunkTask(action, mid, to));
+        } else if (to > from) {
+            try {
+                action.process(from);
+            } catch (IOException | GeneralSecurityException e) {
+                throw new CompletionException(e);
+            }
+        }
+    }
+}
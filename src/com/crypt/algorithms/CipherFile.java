@@ -1,27 +1,89 @@
 package com.crypt.algorithms;
 
 import javax.crypto.IllegalBlockSizeException;
-import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.StandardCopyOption;
-
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Block access to a file being encrypted or decrypted. Reads come from the original file and writes go to a
+ * temporary file next to the output, which finish() moves into place. Bytes that have been written are read back
+ * from the temporary file, so the file behaves as if it were modified in place.
+ */
 public class CipherFile {
 
+    /**
+     * How the files are read and written
+     */
+    public enum Backend {
+        // RandomAccessFile reads and writes through the read-ahead and write-behind buffers
+        RANDOM_ACCESS,
+        // Sliding memory-mapped windows, unmapped as soon as the next window is needed. The buffers are not used,
+        // and transform hands the cipher slices of the windows.
+        MAPPED;
+
+        // System property naming the backend used when none is given, e.g. -Dcrypt.cipherfile.backend=MAPPED
+        public static final String PROPERTY = "crypt.cipherfile.backend";
+
+        /**
+         * @return The backend named by the PROPERTY system property, or RANDOM_ACCESS if it is not set
+         * @throws IllegalArgumentException if the property names no backend
+         */
+        public static Backend fromProperty() {
+            String name = System.getProperty(PROPERTY);
+            return name == null ? RANDOM_ACCESS : valueOf(name.trim().toUpperCase(Locale.ROOT));
+        }
+    }
+
+    /**
+     * Block cipher applied by transform
+     */
+    public interface BlockTransform {
+        /**
+         * Transforms in into out. Both have the same number of bytes remaining, a multiple of the block size,
+         * and may be the same memory.
+         */
+        void apply(ByteBuffer in, ByteBuffer out);
+    }
+
     private static final int MAX_BULK_SIZE = Integer.MAX_VALUE - 127;
 
-    private final String filePath;
+    // Default size of the read-ahead and write-behind buffers
+    public static final int DEFAULT_BUFFER_SIZE = 1 << 20;
+
     private final int blockSize;
-    private final boolean isEncryption;
 
     private long fileLength;
     private long currentPos = 0;
 
+    private final Path sourcePath;
+    private final Path targetPath;
+    private final FileStorage sourceFile;
+
     private final Path tempPath;
-    private final RandomAccessFile tempFile;
+    private final FileStorage tempFile;
+
+    // Ranges [start, end) that have been written, and so are read from the temporary file. Adjacent ranges are merged.
+    private final TreeMap<Long, Long> writtenRanges = new TreeMap<>();
+
+    // Length of the temporary file including writes that are still buffered
+    private long physicalLength;
+
+    // Bytes [readBufferPos, readBufferPos + readBufferLength) of the file, kept up to date with later writes
+    private final byte[] readBuffer;
+    private long readBufferPos = 0;
+    private int readBufferLength = 0;
+
+    // Contiguous writes not yet written to the file, starting at writeBufferPos
+    private final byte[] writeBuffer;
+    private long writeBufferPos = 0;
+    private int writeBufferLength = 0;
 
     /**
      * Creates new CipherFile
@@ -31,20 +93,65 @@ public class CipherFile {
      * @throws IllegalBlockSizeException if block size is too large
      */
     public CipherFile (String filePath, int blockSize, boolean isEncryption) throws IOException, IllegalBlockSizeException {
+        this(filePath, blockSize, isEncryption, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Creates new CipherFile on the backend named by the Backend.PROPERTY system property
+     * @param filePath Path to the file
+     * @param blockSize Size of blocks for nextBlock()
+     * @param bufferSize Size of the read-ahead and write-behind buffers. Reads and writes larger than this
+     *                   go straight to the file.
+     * @throws IOException if files could not be read
+     * @throws IllegalBlockSizeException if block size is too large
+     */
+    public CipherFile (String filePath, int blockSize, boolean isEncryption, int bufferSize)
+            throws IOException, IllegalBlockSizeException {
+        this(filePath, blockSize, isEncryption, bufferSize, Backend.fromProperty());
+    }
+
+    /**
+     * Creates new CipherFile
+     * @param filePath Path to the file
+     * @param blockSize Size of blocks for nextBlock()
+     * @param bufferSize Size of the read-ahead and write-behind buffers of the RANDOM_ACCESS backend
+     * @param backend How the files are read and written
+     * @throws IOException if files could not be read
+     * @throws IllegalBlockSizeException if block size is too large
+     */
+    public CipherFile (String filePath, int blockSize, boolean isEncryption, int bufferSize, Backend backend)
+            throws IOException, IllegalBlockSizeException {
 
         if (blockSize > MAX_BULK_SIZE) throw new IllegalBlockSizeException("Block is too large");
+        if (bufferSize < 1) throw new IllegalArgumentException("Buffer size must be positive");
 
-        this.filePath = filePath;
         this.blockSize = blockSize;
-        this.isEncryption = isEncryption;
 
-        File file = new File(filePath);
+        this.sourcePath = Paths.get(filePath);
+        this.targetPath = Paths.get(isEncryption ?
+                Utilities.setEncryptedExtension(filePath)
+                :
+                Utilities.setNormalExtension(filePath));
+
+        this.sourceFile = FileStorage.open(sourcePath, false, backend);
+        this.fileLength = Files.size(sourcePath);
+        this.physicalLength = this.fileLength;
 
-        this.tempPath = Files.createTempFile(file.getName(), null);
-        Files.copy(Paths.get(filePath), this.tempPath, StandardCopyOption.REPLACE_EXISTING);
+        // Written next to the output so finish() is a rename rather than a copy
+        this.tempPath = Utilities.createSiblingTempFile(targetPath);
+        try {
+            this.tempFile = FileStorage.open(tempPath, true, backend);
+            this.tempFile.setLength(this.fileLength);
+        } catch (IOException e) {
+            sourceFile.close();
+            Utilities.deleteFile(tempPath.toString());
+            throw e;
+        }
 
-        this.tempFile = new RandomAccessFile(this.tempPath.toFile(), "rw");
-        this.fileLength = this.tempFile.length();
+        // Mapped windows are already in memory, so every read and write goes straight to them
+        int buffers = backend == Backend.MAPPED ? 0 : bufferSize;
+        this.readBuffer = new byte[buffers];
+        this.writeBuffer = new byte[buffers];
     }
 
     /**
@@ -52,7 +159,7 @@ public class CipherFile {
      * @return true if file has more to read, else false
      */
     public boolean hasNext() {
-        return currentPos >= fileLength;
+        return currentPos < fileLength;
     }
 
     /**
@@ -83,6 +190,13 @@ public class CipherFile {
         return currentPos;
     }
 
+    /**
+     * @return Length of the file including writes and truncation so far
+     */
+    public long getLength() {
+        return fileLength;
+    }
+
     /**
      * Sets current pos
      * @param pos The position to set to. If pos > fileLength, pos is set to fileLength
@@ -93,8 +207,9 @@ public class CipherFile {
 
     /**
      * Pads the file using PKCS#5. (BLOCK SIZE MUST BE < 255 bytes
+     * @throws IOException if the padding could not be written
      */
-    public void pad() {
+    public void pad() throws IOException {
         byte padding = (byte) (blockSize - (fileLength % blockSize));
         if (padding == 0) padding = (byte)blockSize;
         byte[] pad = new byte[padding];
@@ -138,8 +253,7 @@ public class CipherFile {
         byte[] data = new byte[blockSize];
 
         try {
-            tempFile.seek(reverse ? this.fileLength - offset : offset);
-            tempFile.read(data, 0, blockSize);
+            read(reverse ? this.fileLength - offset : offset, data, blockSize);
         } catch (IOException e) {
             e.printStackTrace();
             return null;
@@ -156,21 +270,225 @@ public class CipherFile {
      */
     public void writeDataAtOffset(byte[] buffer, long offset, boolean reverse) {
         try {
-            long pos = reverse ? tempFile.length() - offset : offset;
-            tempFile.seek(pos);
-            tempFile.write(buffer);
-            fileLength = Math.max(pos+buffer.length, fileLength);
+            writeAt(reverse ? physicalLength - offset : offset, buffer);
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
+    private void writeAt(long pos, byte[] buffer) throws IOException {
+        write(pos, buffer);
+        fileLength = Math.max(pos + buffer.length, fileLength);
+    }
+
+    /**
+     * Transforms bytes [pos, end) of the file where they lie, as reading them, transforming them and writing them
+     * back would. With the MAPPED backend the transform is handed slices of the mapped source and temporary file,
+     * so no bytes are copied. Otherwise, and for a block that is partly original data and partly written data
+     * (e.g. the padding), the bytes go through an array and the buffers.
+     * @param end At most getLength(), and pos plus a multiple of the block size
+     */
+    public void transform(long pos, long end, BlockTransform transform) throws IOException {
+        byte[] data = null;
+        while (pos < end) {
+            ByteBuffer in = mappedSlice(pos, end);
+            ByteBuffer out = in == null ? null : tempFile.slice(pos, in.remaining());
+
+            int length = out == null ? 0 : Math.min(in.remaining(), out.remaining());
+            length -= length % blockSize;
+            if (length > 0) {
+                in.limit(length);
+                out.limit(length);
+                transform.apply(in, out);
+
+                markWritten(pos, pos + length);
+                physicalLength = Math.max(pos + length, physicalLength);
+                pos += length;
+                continue;
+            }
+
+            // As many whole blocks as fit in the read-ahead buffer, or a single block without one
+            int blocks = Math.max(1, readBuffer.length / blockSize);
+            length = (int) Math.min(end - pos, (long) blocks * blockSize);
+            if (data == null || data.length != length) data = new byte[length];
+
+            read(pos, data, length);
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            transform.apply(buffer, buffer.duplicate());
+            write(pos, data);
+            pos += length;
+        }
+    }
+
+    /**
+     * Maps the bytes of the file from pos in whichever file holds them, cut to whole blocks and to the written or
+     * unwritten range pos is in
+     * @return The bytes, or null if the backend does not map or there is less than a block
+     */
+    private ByteBuffer mappedSlice(long pos, long end) throws IOException {
+        Map.Entry<Long, Long> written = writtenRanges.floorEntry(pos);
+        boolean inTemp = written != null && pos < written.getValue();
+        Long next = writtenRanges.higherKey(pos);
+        long rangeEnd = inTemp ? written.getValue() : next == null ? end : next;
+
+        long length = Math.min(end, rangeEnd) - pos;
+        if (length < blockSize) return null;
+
+        ByteBuffer slice = (inTemp ? tempFile : sourceFile).slice(pos, (int) Math.min(length, MAX_BULK_SIZE));
+        if (slice == null || slice.remaining() < blockSize) return null;
+        slice.limit(slice.remaining() - slice.remaining() % blockSize);
+        return slice;
+    }
+
+    /**
+     * Reads length bytes at pos into data, from the read-ahead buffer if they fit in it
+     */
+    private void read(long pos, byte[] data, int length) throws IOException {
+        if (length > readBuffer.length) {
+            flushWrites(pos, length);
+            readFile(pos, data, 0, length);
+            return;
+        }
+
+        if (pos < readBufferPos || pos + length > readBufferPos + readBufferLength) {
+            int fill = (int) Math.max(0, Math.min(readBuffer.length, physicalLength - pos));
+            flushWrites(pos, fill);
+            readBufferPos = pos;
+            readBufferLength = readFile(pos, readBuffer, 0, fill);
+        }
+
+        int available = (int) Math.max(0, Math.min(length, readBufferPos + readBufferLength - pos));
+        System.arraycopy(readBuffer, (int) (pos - readBufferPos), data, 0, available);
+    }
+
+    /**
+     * Queues buffer to be written at pos. Contiguous writes are coalesced and written together once the
+     * write-behind buffer is full or a write lands somewhere else.
+     */
+    private void write(long pos, byte[] buffer) throws IOException {
+
+        // Keep the read-ahead buffer consistent with the new data
+        long from = Math.max(pos, readBufferPos);
+        long to = Math.min(pos + buffer.length, readBufferPos + readBufferLength);
+        if (from < to)
+            System.arraycopy(buffer, (int) (from - pos), readBuffer, (int) (from - readBufferPos), (int) (to - from));
+
+        if (writeBufferLength > 0 &&
+                (pos != writeBufferPos + writeBufferLength || writeBufferLength + buffer.length > writeBuffer.length))
+            flushWrites();
+
+        markWritten(pos, pos + buffer.length);
+
+        if (buffer.length > writeBuffer.length) {
+            tempFile.write(pos, buffer, 0, buffer.length);
+        } else {
+            if (writeBufferLength == 0) writeBufferPos = pos;
+            System.arraycopy(buffer, 0, writeBuffer, writeBufferLength, buffer.length);
+            writeBufferLength += buffer.length;
+        }
+
+        physicalLength = Math.max(pos + buffer.length, physicalLength);
+    }
+
+    /**
+     * Writes out buffered writes if they overlap [pos, pos + length), so a read of that range sees them
+     */
+    private void flushWrites(long pos, int length) throws IOException {
+        if (writeBufferLength > 0 && pos < writeBufferPos + writeBufferLength && writeBufferPos < pos + length)
+            flushWrites();
+    }
+
+    private void flushWrites() throws IOException {
+        if (writeBufferLength == 0) return;
+        tempFile.write(writeBufferPos, writeBuffer, 0, writeBufferLength);
+        writeBufferLength = 0;
+    }
+
+    /**
+     * Records that [start, end) now holds written data, merging it with the ranges it touches
+     */
+    private void markWritten(long start, long end) {
+        Map.Entry<Long, Long> before = writtenRanges.floorEntry(start);
+        if (before != null && before.getValue() >= start) {
+            start = before.getKey();
+            end = Math.max(end, before.getValue());
+        }
+
+        Map.Entry<Long, Long> after;
+        while ((after = writtenRanges.ceilingEntry(start)) != null && after.getKey() <= end) {
+            end = Math.max(end, after.getValue());
+            writtenRanges.remove(after.getKey());
+        }
+
+        writtenRanges.put(start, end);
+    }
+
+    /**
+     * Reads up to length bytes at pos into data[offset...], taking written ranges from the temporary file and the
+     * rest from the original file. Stops early only at EOF.
+     * @return Number of bytes read
+     */
+    private int readFile(long pos, byte[] data, int offset, int length) throws IOException {
+        int total = 0;
+        while (total < length) {
+            long at = pos + total;
+            Map.Entry<Long, Long> written = writtenRanges.floorEntry(at);
+
+            int read;
+            if (written != null && at < written.getValue()) {
+                read = tempFile.read(at, data, offset + total,
+                        (int) Math.min(length - total, written.getValue() - at));
+            } else {
+                Long next = writtenRanges.higherKey(at);
+                int size = (int) Math.min(length - total, next == null ? Long.MAX_VALUE : next - at);
+                read = sourceFile.read(at, data, offset + total, size);
+
+                // Past the end of the original file but before more written data, the file holds zeroes
+                if (read < size && next != null) {
+                    Arrays.fill(data, offset + total + read, offset + total + size, (byte) 0);
+                    read = size;
+                }
+            }
+
+            if (read <= 0) break;
+            total += read;
+        }
+        return total;
+    }
+
+    /**
+     * Copies the parts of [0, fileLength) that were never written from the original file to the temporary file
+     */
+    private void copyUnwritten() throws IOException {
+        byte[] buffer = null;
+        long pos = 0;
+        while (pos < fileLength) {
+            Map.Entry<Long, Long> written = writtenRanges.floorEntry(pos);
+            if (written != null && pos < written.getValue()) {
+                pos = written.getValue();
+                continue;
+            }
+
+            Long next = writtenRanges.higherKey(pos);
+            long end = Math.min(fileLength, next == null ? fileLength : next);
+            if (buffer == null) buffer = new byte[DEFAULT_BUFFER_SIZE];
+            while (pos < end) {
+                int read = sourceFile.read(pos, buffer, 0, (int) Math.min(buffer.length, end - pos));
+                if (read <= 0) break;
+                tempFile.write(pos, buffer, 0, read);
+                pos += read;
+            }
+            pos = end;
+        }
+    }
+
     /**
      * Writes data to EOF to temporary file. Use finish() to complete.
      * @param buffer The data to write
+     * @throws IOException if the data could not be written
      */
-    public void writeDataEOF(byte[] buffer) {
-        writeDataAtOffset(buffer, 0, true);
+    public void writeDataEOF(byte[] buffer) throws IOException {
+        writeAt(physicalLength, buffer);
     }
 
     /**
@@ -187,23 +505,41 @@ public class CipherFile {
      */
     public boolean finish() {
         try {
-            Path newFilePath = Paths.get(
-                    this.isEncryption ?
-                    Utilities.setEncryptedExtension(filePath)
-                    :
-                    Utilities.setNormalExtension(filePath)
-            );
+            commit();
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
 
+    /**
+     * Same as finish, but a failure is thrown instead of printed. The original file is left as it was.
+     */
+    public void commit() throws IOException {
+        try {
+            flushWrites();
+            copyUnwritten();
             tempFile.setLength(fileLength);
-            Files.copy(tempPath, newFilePath, StandardCopyOption.REPLACE_EXISTING);
 
             tempFile.close();
-            Utilities.deleteFile(this.filePath);
-            return true;
+            sourceFile.close();
+            Utilities.commitFile(tempPath, targetPath, sourcePath);
         } catch (IOException e) {
-            e.printStackTrace();
-            return false;
+            abort();
+            throw e;
         }
     }
 
+    /**
+     * Closes the files and deletes the temporary file, leaving the original file as it was
+     */
+    public void abort() {
+        try {
+            tempFile.close();
+            sourceFile.close();
+        } catch (IOException ignored) { }
+        Utilities.deleteFile(tempPath.toString());
+    }
+
 }
@@ -1,6 +1,9 @@
 package com.crypt.algorithms;
 
 import javax.crypto.KeyAgreement;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.security.*;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.PKCS8EncodedKeySpec;
@@ -11,26 +14,49 @@ import java.util.Base64;
 public class ECC {
     public static void crypt(String filePath, byte[] privateKey, byte[] publicKey, boolean encrypt) {
         try {
-            // Convert byte arrays to private and public key objects
-            KeyFactory kf = KeyFactory.getInstance("EC");
-            PrivateKey prKey = kf.generatePrivate(new PKCS8EncodedKeySpec(Base64.getDecoder().decode(privateKey)));
-            PublicKey puKey = kf.generatePublic(new X509EncodedKeySpec(Base64.getDecoder().decode(publicKey)));
-
-            // Do the key agreement with third party public key and user's private key via Diffie-Hellman
-            KeyAgreement keyAgreement = KeyAgreement.getInstance("ECDH");
-            keyAgreement.init(prKey);
-            keyAgreement.doPhase(puKey, true);
-
-            // Hash the key to fit the correct size
-            MessageDigest md = MessageDigest.getInstance("SHA256");
-
-            // Encrypt the file using the hashed shared secret as our AES key
-            AES.crypt(filePath, md.digest(keyAgreement.generateSecret()), encrypt);
-        } catch (NoSuchAlgorithmException | InvalidKeySpecException | InvalidKeyException e) {
+            cryptFile(filePath, privateKey, publicKey, encrypt);
+        } catch (GeneralSecurityException | IOException e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * Same as crypt, but a failure is thrown instead of printed. The original file is left as it was.
+     */
+    public static void cryptFile(String filePath, byte[] privateKey, byte[] publicKey, boolean encrypt)
+            throws IOException, GeneralSecurityException {
+        // Encrypt the file using the hashed shared secret as our AES key
+        AES.cryptFile(filePath, sharedKey(privateKey, publicKey), encrypt, AES.Mode.CBC, 1);
+    }
+
+    /**
+     * Encrypts or decrypts a stream with AES under the shared secret, see AES.crypt for the stream format.
+     */
+    public static void crypt(InputStream in, OutputStream out, byte[] privateKey, byte[] publicKey, boolean encrypt)
+            throws IOException, GeneralSecurityException {
+        AES.crypt(in, out, sharedKey(privateKey, publicKey), encrypt);
+    }
+
+    /**
+     * @return SHA-256 of the Diffie-Hellman secret shared by the user's private key and a third party public key
+     */
+    private static byte[] sharedKey(byte[] privateKey, byte[] publicKey)
+            throws NoSuchAlgorithmException, InvalidKeySpecException, InvalidKeyException {
+        // Convert byte arrays to private and public key objects
+        KeyFactory kf = KeyFactory.getInstance("EC");
+        PrivateKey prKey = kf.generatePrivate(new PKCS8EncodedKeySpec(Base64.getDecoder().decode(privateKey)));
+        PublicKey puKey = kf.generatePublic(new X509EncodedKeySpec(Base64.getDecoder().decode(publicKey)));
+
+        // Do the key agreement with third party public key and user's private key via Diffie-Hellman
+        KeyAgreement keyAgreement = KeyAgreement.getInstance("ECDH");
+        keyAgreement.init(prKey);
+        keyAgreement.doPhase(puKey, true);
+
+        // Hash the key to fit the correct size
+        MessageDigest md = MessageDigest.getInstance("SHA256");
+        return md.digest(keyAgreement.generateSecret());
+    }
+
     /**
      * Generates an ECC public and private key pair.
      * @return A private and public KeyPair
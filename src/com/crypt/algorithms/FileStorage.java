@@ -0,0 +1,179 @@
+package com.crypt.algorithms;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+
+/**
+ * Positional reads and writes on one of the files behind a CipherFile
+ */
+interface FileStorage extends Closeable {
+
+    /**
+     * Reads up to length bytes at pos into data[offset...], stopping early only at EOF
+     * @return Number of bytes read
+     */
+    int read(long pos, byte[] data, int offset, int length) throws IOException;
+
+    void write(long pos, byte[] data, int offset, int length) throws IOException;
+
+    void setLength(long length) throws IOException;
+
+    /**
+     * Returns up to length bytes at pos as a buffer backed by the file itself, so they can be read and changed
+     * without copying. Fewer bytes are returned at the end of a window or of a read-only file. The buffer is only
+     * valid until the next call on this storage.
+     * @return The bytes, or null if this storage can only copy
+     */
+    ByteBuffer slice(long pos, int length) throws IOException;
+
+    static FileStorage open(Path path, boolean writable, CipherFile.Backend backend) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(path.toFile(), writable ? "rw" : "r");
+        return backend == CipherFile.Backend.MAPPED ? new Mapped(file, writable) : new RandomAccess(file);
+    }
+
+    /**
+     * A seek followed by a read or write for every call
+     */
+    final class RandomAccess implements FileStorage {
+
+        private final RandomAccessFile file;
+
+        RandomAccess(RandomAccessFile file) {
+            this.file = file;
+        }
+
+        @Override
+        public int read(long pos, byte[] data, int offset, int length) throws IOException {
+            file.seek(pos);
+            int total = 0;
+            while (total < length) {
+                int read = file.read(data, offset + total, length - total);
+                if (read == -1) break;
+                total += read;
+            }
+            return total;
+        }
+
+        @Override
+        public void write(long pos, byte[] data, int offset, int length) throws IOException {
+            file.seek(pos);
+            file.write(data, offset, length);
+        }
+
+        @Override
+        public void setLength(long length) throws IOException {
+            file.setLength(length);
+        }
+
+        @Override
+        public ByteBuffer slice(long pos, int length) {
+            return null;
+        }
+
+        @Override
+        public void close() throws IOException {
+            file.close();
+        }
+    }
+
+    /**
+     * Maps the file one window at a time. Reads and writes are copies to and from the current window, slices are
+     * views of it. The previous window is unmapped as soon as another one is needed, so at most one window per
+     * file is mapped.
+     */
+    final class Mapped implements FileStorage {
+
+        // Must fit in an int
+        private static final int WINDOW_SIZE = 64 << 20;
+
+        private final RandomAccessFile file;
+        private final FileChannel channel;
+        private final FileChannel.MapMode mode;
+
+        private long size;
+        private MappedByteBuffer window;
+        private long windowPos;
+
+        Mapped(RandomAccessFile file, boolean writable) throws IOException {
+            this.file = file;
+            this.channel = file.getChannel();
+            this.mode = writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY;
+            this.size = file.length();
+        }
+
+        @Override
+        public int read(long pos, byte[] data, int offset, int length) throws IOException {
+            int total = 0;
+            while (total < length && pos + total < size) {
+                MappedByteBuffer current = window(pos + total, Math.min(pos + length, size));
+                int count = Math.min(length - total, current.remaining());
+                current.get(data, offset + total, count);
+                total += count;
+            }
+            return total;
+        }
+
+        @Override
+        public void write(long pos, byte[] data, int offset, int length) throws IOException {
+            int total = 0;
+            while (total < length) {
+                MappedByteBuffer current = window(pos + total, pos + length);
+                int count = Math.min(length - total, current.remaining());
+                current.put(data, offset + total, count);
+                total += count;
+            }
+            size = Math.max(size, pos + length);
+        }
+
+        @Override
+        public ByteBuffer slice(long pos, int length) throws IOException {
+            // A read-only file can not grow
+            long end = mode == FileChannel.MapMode.READ_ONLY ? Math.min(pos + length, size) : pos + length;
+            if (pos >= end) return null;
+
+            ByteBuffer slice = window(pos, end).slice();
+            slice.limit((int) Math.min(slice.remaining(), end - pos));
+            size = Math.max(size, pos + slice.limit());
+            return slice;
+        }
+
+        /**
+         * Returns the window holding pos, positioned at pos. A new window reaches up to end if the window size
+         * allows, mapping past EOF grows a writable file.
+         */
+        private MappedByteBuffer window(long pos, long end) throws IOException {
+            if (window == null || pos < windowPos || pos >= windowPos + window.capacity()) {
+                unmap();
+                windowPos = pos - pos % WINDOW_SIZE;
+                window = channel.map(mode, windowPos, Math.min(WINDOW_SIZE, Math.max(size, end) - windowPos));
+            }
+            window.position((int) (pos - windowPos));
+            return window;
+        }
+
+        @Override
+        public void setLength(long length) throws IOException {
+            // Files can not be truncated while mapped on every platform
+            unmap();
+            file.setLength(length);
+            size = length;
+        }
+
+        @Override
+        public void close() throws IOException {
+            unmap();
+            file.close();
+        }
+
+        private void unmap() {
+            if (window == null) return;
+            Utilities.unmap(window);
+            window = null;
+        }
+    }
+}
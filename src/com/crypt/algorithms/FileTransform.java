@@ -0,0 +1,197 @@
+package com.crypt.algorithms;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+
+/**
+ * Streams a file through a cipher into a temporary file next to the output, which finish() moves into place.
+ * The file may end with a trailer of a fixed length (e.g. an IV) that is not passed through the cipher, and any
+ * bytes can be written before or after the transformed data. Memory use is two buffers whatever the file length.
+ *
+ * <pre>
+ * try (FileTransform file = new FileTransform(filePath, isEncryption, trailerLength)) {
+ *     byte[] trailer = file.trailer();
+ *     file.transform(transform, expansion);
+ *     file.write(newTrailer);
+ *     file.finish();
+ * }
+ * </pre>
+ * If finish() is not reached the temporary file is deleted on close() and the original file is left as it was.
+ */
+public class FileTransform implements Closeable {
+
+    /**
+     * A block or stream cipher that is fed the file one buffer at a time
+     */
+    public interface Transform {
+        /**
+         * Transforms the remaining bytes of in, appending the result to out. Output may lag behind the input,
+         * e.g. a block cipher holding back a partial block, as long as it fits in the expansion given to transform.
+         */
+        void update(ByteBuffer in, ByteBuffer out) throws GeneralSecurityException;
+
+        /**
+         * Called once after the last update, appending any output that was held back
+         */
+        default void finish(ByteBuffer out) throws GeneralSecurityException { }
+    }
+
+    // Default size of the read and write buffers
+    public static final int DEFAULT_BUFFER_SIZE = 1 << 20;
+
+    private final int bufferSize;
+    private final int trailerLength;
+
+    private final Path sourcePath;
+    private final Path targetPath;
+    private final Path tempPath;
+    private final FileChannel source;
+    private final FileChannel temp;
+
+    // Length of the source without its trailer
+    private final long length;
+
+    private boolean finished = false;
+
+    /**
+     * Creates new FileTransform
+     * @param filePath Path to the file
+     * @param isEncryption Whether the output gets or loses the encrypted extension
+     * @param trailerLength Bytes at the end of the file that are not part of the data
+     * @throws IOException if the file could not be opened, or is shorter than its trailer
+     */
+    public FileTransform(String filePath, boolean isEncryption, int trailerLength) throws IOException {
+        this(filePath, isEncryption, trailerLength, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Creates new FileTransform
+     * @param filePath Path to the file
+     * @param isEncryption Whether the output gets or loses the encrypted extension
+     * @param trailerLength Bytes at the end of the file that are not part of the data
+     * @param bufferSize Bytes read and transformed at a time
+     * @throws IOException if the file could not be opened, or is shorter than its trailer
+     */
+    public FileTransform(String filePath, boolean isEncryption, int trailerLength, int bufferSize) throws IOException {
+        if (bufferSize < 1) throw new IllegalArgumentException("Buffer size must be positive");
+        if (trailerLength < 0) throw new IllegalArgumentException("Trailer length must not be negative");
+
+        this.bufferSize = bufferSize;
+        this.trailerLength = trailerLength;
+
+        this.sourcePath = Paths.get(filePath);
+        this.targetPath = Paths.get(isEncryption ?
+                Utilities.setEncryptedExtension(filePath)
+                :
+                Utilities.setNormalExtension(filePath));
+
+        this.source = FileChannel.open(sourcePath, StandardOpenOption.READ);
+        try {
+            this.length = source.size() - trailerLength;
+            if (length < 0) throw new EOFException(filePath + " is shorter than its trailer");
+
+            // Written next to the output so finish() is a rename rather than a copy
+            this.tempPath = Utilities.createSiblingTempFile(targetPath);
+        } catch (IOException e) {
+            source.close();
+            throw e;
+        }
+
+        try {
+            this.temp = FileChannel.open(tempPath, StandardOpenOption.WRITE);
+        } catch (IOException e) {
+            source.close();
+            Utilities.deleteFile(tempPath.toString());
+            throw e;
+        }
+    }
+
+    /**
+     * @return Length of the file without its trailer
+     */
+    public long length() {
+        return length;
+    }
+
+    /**
+     * @return The trailer of the original file
+     */
+    public byte[] trailer() throws IOException {
+        byte[] trailer = new byte[trailerLength];
+        if (Utilities.readFully(source, ByteBuffer.wrap(trailer), length) != trailerLength)
+            throw new EOFException(sourcePath + " changed size while reading");
+        return trailer;
+    }
+
+    /**
+     * Appends bytes to the output as they are, e.g. a header or trailer
+     */
+    public void write(byte[] data) throws IOException {
+        Utilities.writeFully(temp, ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Streams the file, without its trailer, through transform and appends the result to the output
+     * @param transform Cipher to apply
+     * @param expansion How many more bytes than it was given the transform may output at once
+     */
+    public void transform(Transform transform, int expansion) throws IOException, GeneralSecurityException {
+        ByteBuffer inBuffer = ByteBuffer.allocate(bufferSize);
+        ByteBuffer outBuffer = ByteBuffer.allocate(bufferSize + expansion);
+
+        for (long position = 0; position < length; position += inBuffer.limit()) {
+            inBuffer.clear().limit((int) Math.min(bufferSize, length - position));
+            Utilities.readFully(source, inBuffer, position);
+            if (inBuffer.hasRemaining()) throw new EOFException(sourcePath + " changed size while reading");
+
+            inBuffer.flip();
+            outBuffer.clear();
+            transform.update(inBuffer, outBuffer);
+            outBuffer.flip();
+            Utilities.writeFully(temp, outBuffer);
+        }
+
+        outBuffer.clear();
+        transform.finish(outBuffer);
+        outBuffer.flip();
+        Utilities.writeFully(temp, outBuffer);
+    }
+
+    /**
+     * Cuts the output down to size bytes, e.g. to remove padding
+     */
+    public void setLength(long size) throws IOException {
+        temp.truncate(size);
+        temp.position(Math.min(temp.position(), size));
+    }
+
+    /**
+     * Replaces the file with its encryption/decryption
+     */
+    public void finish() throws IOException {
+        temp.close();
+        source.close();
+        Utilities.commitFile(tempPath, targetPath, sourcePath);
+        finished = true;
+    }
+
+    /**
+     * Closes the files, and deletes the output unless finish() was called
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            temp.close();
+            source.close();
+        } finally {
+            if (!finished) Utilities.deleteFile(tempPath.toString());
+        }
+    }
+}
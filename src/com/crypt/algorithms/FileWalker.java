@@ -0,0 +1,211 @@
+package com.crypt.algorithms;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Walks a file or folder on a background thread and hands out the regular files it finds through a bounded queue,
+ * so the first file can be processed while the rest of the tree is still being listed. Memory use is the queue and
+ * the listing of one folder, not the whole tree. next() may be called from any number of threads.
+ */
+public class FileWalker implements Closeable {
+
+    /**
+     * What to do with symbolic links
+     */
+    public enum Symlinks {
+        // Links are not returned or entered. Encrypting through a link would replace it with a regular file.
+        SKIP,
+        // Links are resolved. A file or folder reached a second time, e.g. through a link back to a parent folder,
+        // is reported and skipped.
+        FOLLOW
+    }
+
+    // Default number of files found but not yet handed out
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    // Marks the end of the walk in the queue
+    private static final File END = new File("");
+
+    private final Path root;
+    private final Symlinks symlinks;
+    private final List<PathMatcher> excludes;
+    private final BlockingQueue<File> queue;
+    private final Thread walker;
+
+    private volatile boolean closed = false;
+    private volatile IOException failure;
+
+    /**
+     * Creates new FileWalker. Nothing is read until start() is called.
+     * @param root File or folder to walk
+     * @param symlinks What to do with symbolic links
+     * @param excludes Glob patterns, e.g. "*.crypt" or "build/**". A file or folder is skipped if its name or its
+     *                 path relative to root matches one. Folders that match are not entered.
+     * @param capacity Files that may be waiting in the queue before the walk pauses
+     */
+    public FileWalker(Path root, Symlinks symlinks, List<String> excludes, int capacity) {
+        this.root = root.toAbsolutePath().normalize();
+        this.symlinks = symlinks;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+
+        this.excludes = new ArrayList<>();
+        for (String pattern : excludes)
+            this.excludes.add(FileSystems.getDefault().getPathMatcher("glob:" + pattern));
+
+        this.walker = new Thread(this::walk, "File walker");
+        this.walker.setDaemon(true);
+    }
+
+    /**
+     * Creates new FileWalker that skips symbolic links and excludes nothing
+     * @param root File or folder to walk
+     */
+    public FileWalker(Path root) {
+        this(root, Symlinks.SKIP, Collections.emptyList(), DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Starts walking on a background thread
+     * @return this
+     */
+    public FileWalker start() {
+        walker.start();
+        return this;
+    }
+
+    /**
+     * Waits for the next regular file
+     * @return The next file, or null once every file has been handed out
+     * @throws IOException if the root could not be walked at all
+     */
+    public File next() throws IOException, InterruptedException {
+        File file = queue.take();
+        if (file == END) {
+            // Leave the marker for the other threads
+            queue.put(END);
+            if (failure != null) throw failure;
+            return null;
+        }
+        return file;
+    }
+
+    /**
+     * Stops the walk. Files already in the queue are dropped.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        walker.interrupt();
+        queue.clear();
+        queue.offer(END);
+    }
+
+    private void walk() {
+        LinkOption[] linkOptions = symlinks == Symlinks.FOLLOW ? new LinkOption[0] :
+                new LinkOption[] {LinkOption.NOFOLLOW_LINKS};
+
+        // Folders and files already seen through another link, only needed when links are followed
+        Set<Object> visited = symlinks == Symlinks.FOLLOW ? new HashSet<>() : null;
+
+        try {
+            Deque<Path> folders = new ArrayDeque<>();
+
+            // The root is what the user asked for, so it is followed even if it is a link
+            BasicFileAttributes rootAttributes = Files.readAttributes(root, BasicFileAttributes.class);
+            if (visited != null) visited.add(identity(root, rootAttributes));
+            if (rootAttributes.isDirectory()) folders.push(root);
+            else if (rootAttributes.isRegularFile()) queue.put(root.toFile());
+
+            while (!folders.isEmpty() && !closed) {
+                Path folder = folders.pop();
+                List<Path> files = new ArrayList<>();
+                List<Path> subfolders = new ArrayList<>();
+
+                // The whole folder is listed before any of its files are handed out, so the output files written
+                // next to them are never picked up by the same walk
+                try (DirectoryStream<Path> entries = Files.newDirectoryStream(folder)) {
+                    for (Path entry : entries) {
+                        if (isExcluded(entry)) continue;
+
+                        BasicFileAttributes attributes;
+                        try {
+                            attributes = Files.readAttributes(entry, BasicFileAttributes.class, linkOptions);
+                        } catch (IOException e) {
+                            System.out.println("Skipping " + entry + ", it could not be read: " + e);
+                            continue;
+                        }
+
+                        if (visited != null && !visited.add(identity(entry, attributes))) {
+                            System.out.println("Skipping " + entry + ", it was already reached through another link.");
+                            continue;
+                        }
+
+                        // Without following, links are neither files nor folders
+                        if (attributes.isDirectory()) subfolders.add(entry);
+                        else if (attributes.isRegularFile()) files.add(entry);
+                    }
+                } catch (IOException | DirectoryIteratorException e) {
+                    System.out.println("Skipping " + folder + ", it could not be read: " + e);
+                    continue;
+                }
+
+                for (Path file : files) {
+                    if (closed) return;
+                    queue.put(file.toFile());
+                }
+
+                // Depth first, in listing order
+                for (int i = subfolders.size() - 1; i >= 0; i--)
+                    folders.push(subfolders.get(i));
+            }
+        } catch (IOException e) {
+            failure = e;
+        } catch (InterruptedException e) {
+            return;
+        } finally {
+            // Consumers take files as they go, so this only waits while the queue is full
+            boolean ended = false;
+            while (!ended && !closed) {
+                try {
+                    queue.put(END);
+                    ended = true;
+                } catch (InterruptedException ignored) { }
+            }
+        }
+    }
+
+    /**
+     * @return Something equal for every path that leads to the same file
+     */
+    private static Object identity(Path path, BasicFileAttributes attributes) throws IOException {
+        Object key = attributes.fileKey();
+        return key != null ? key : path.toRealPath();
+    }
+
+    private boolean isExcluded(Path path) {
+        Path name = path.getFileName();
+        Path relative = root.relativize(path);
+        for (PathMatcher exclude : excludes)
+            if ((name != null && exclude.matches(name)) || exclude.matches(relative)) return true;
+        return false;
+    }
+}
@@ -0,0 +1,140 @@
+package com.crypt.algorithms;
+
+import java.io.Closeable;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+/**
+ * RSA or ECC key pairs generated ahead of time on background threads, so take() usually returns at once instead
+ * of waiting for a prime search. The pool refills itself as pairs are taken. Also generates many pairs at once
+ * on every core, see generate.
+ */
+public class KeyPairPool implements Closeable {
+
+    private final String algorithm;
+    private final int bits;
+    private final BlockingQueue<KeyPair> ready;
+    private final Thread[] workers;
+
+    /**
+     * Creates new KeyPairPool and starts filling it
+     * @param algorithm "RSA" or "EC"
+     * @param bits Key size, e.g. 4096 for RSA or 256 for EC
+     * @param capacity Pairs kept ready
+     * @param threads Background threads generating pairs
+     * @throws NoSuchAlgorithmException if algorithm is not supported
+     */
+    public KeyPairPool(String algorithm, int bits, int capacity, int threads) throws NoSuchAlgorithmException {
+        this.algorithm = algorithm;
+        this.bits = bits;
+        this.ready = new ArrayBlockingQueue<>(capacity);
+
+        // Fails here rather than on a background thread
+        newGenerator(algorithm, bits);
+
+        this.workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(this::fill, algorithm + " key pair pool " + t);
+            workers[t].setDaemon(true);
+            // Only uses time that encryption and the caller are not using
+            workers[t].setPriority(Thread.MIN_PRIORITY);
+            workers[t].start();
+        }
+    }
+
+    /**
+     * @return A pair from the pool, or one generated on this thread if the pool is empty. Never handed out twice.
+     */
+    public KeyPair take() {
+        KeyPair pair = ready.poll();
+        if (pair != null) return pair;
+
+        try {
+            return newGenerator(algorithm, bits).generateKeyPair();
+        } catch (NoSuchAlgorithmException e) {
+            // Checked in the constructor
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return Number of pairs ready to be taken
+     */
+    public int available() {
+        return ready.size();
+    }
+
+    /**
+     * Stops the background threads. Pairs already generated can still be taken.
+     */
+    @Override
+    public void close() {
+        for (Thread worker : workers) worker.interrupt();
+    }
+
+    private void fill() {
+        try {
+            KeyPairGenerator generator = newGenerator(algorithm, bits);
+            while (!Thread.currentThread().isInterrupted())
+                ready.put(generator.generateKeyPair());
+        } catch (InterruptedException | NoSuchAlgorithmException ignored) { }
+    }
+
+    /**
+     * Generates count key pairs, spread over threads threads. Each pair is handed to consumer on the calling
+     * thread, in order, as soon as it and every pair before it are ready, so output can start before the last
+     * pair is generated.
+     * @param algorithm "RSA" or "EC"
+     * @param bits Key size, e.g. 4096 for RSA or 256 for EC
+     * @param count Number of pairs
+     * @param threads Threads generating pairs
+     * @param consumer Receives each pair
+     */
+    public static void generate(String algorithm, int bits, int count, int threads, Consumer<KeyPair> consumer)
+            throws NoSuchAlgorithmException, InterruptedException, ExecutionException {
+
+        newGenerator(algorithm, bits);
+
+        // A generator per thread, since KeyPairGenerator is not thread-safe
+        ThreadLocal<KeyPairGenerator> generators = ThreadLocal.withInitial(() -> {
+            try {
+                return newGenerator(algorithm, bits);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, algorithm + " key generator");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        try {
+            List<Future<KeyPair>> pairs = new ArrayList<>(count);
+            for (int i = 0; i < count; i++)
+                pairs.add(pool.submit(() -> generators.get().generateKeyPair()));
+
+            for (Future<KeyPair> pair : pairs)
+                consumer.accept(pair.get());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static KeyPairGenerator newGenerator(String algorithm, int bits) throws NoSuchAlgorithmException {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance(algorithm);
+        generator.initialize(bits);
+        return generator;
+    }
+}
@@ -0,0 +1,81 @@
+package com.crypt.algorithms;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+
+/**
+ * Source of IVs and nonces that never blocks. Each thread has its own deterministic generator, seeded once from
+ * the operating system's non-blocking source and reseeded from it every RESEED_INTERVAL bytes, so handing out an
+ * IV is a hash computation rather than a trip to the kernel, and threads do not contend for a lock.
+ */
+public final class NonceGenerator {
+
+    // Bytes a thread's generator hands out before fresh seed material is mixed in
+    static final long RESEED_INTERVAL = 1 << 20;
+
+    private static final int SEED_SIZE = 32;
+
+    // Shared and thread-safe, only used for seeding
+    private static final SecureRandom seedSource = seedSource();
+
+    private static final ThreadLocal<NonceGenerator> generator = ThreadLocal.withInitial(NonceGenerator::new);
+
+    private final SecureRandom random;
+    private long untilReseed;
+
+    private NonceGenerator() {
+        SecureRandom drbg;
+        try {
+            // Hash based, and seeded explicitly so it never falls back to the blocking seed generator
+            drbg = SecureRandom.getInstance("SHA1PRNG");
+        } catch (NoSuchAlgorithmException e) {
+            drbg = new SecureRandom();
+        }
+        drbg.setSeed(seed());
+        this.random = drbg;
+        this.untilReseed = RESEED_INTERVAL;
+    }
+
+    /**
+     * @param length Size of the IV in bytes
+     * @return A new random IV
+     */
+    public static byte[] next(int length) {
+        byte[] nonce = new byte[length];
+        nextBytes(nonce);
+        return nonce;
+    }
+
+    /**
+     * Fills nonce with random bytes
+     */
+    public static void nextBytes(byte[] nonce) {
+        generator.get().fill(nonce);
+    }
+
+    private void fill(byte[] nonce) {
+        if (untilReseed < nonce.length) {
+            // Adds to the state rather than replacing it
+            random.setSeed(seed());
+            untilReseed = RESEED_INTERVAL;
+        }
+        random.nextBytes(nonce);
+        untilReseed -= nonce.length;
+    }
+
+    private static byte[] seed() {
+        byte[] seed = new byte[SEED_SIZE];
+        seedSource.nextBytes(seed);
+        return seed;
+    }
+
+    private static SecureRandom seedSource() {
+        try {
+            // /dev/urandom on Unix
+            return SecureRandom.getInstance("NativePRNGNonBlocking");
+        } catch (NoSuchAlgorithmException e) {
+            // The platform default, which does not block once the system is running (e.g. Windows' CryptGenRandom)
+            return new SecureRandom();
+        }
+    }
+}
@@ -1,8 +1,31 @@
 package com.crypt.algorithms;
 
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicReference;
+
 // Implementation of the RC4 algorithm
 public class RC4 {
 
+    // Bytes read, encrypted and written at a time
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    // Keystream buffers cryptPipelined generates ahead of the data
+    private static final int RING_SIZE = 4;
+
+    // Put in the ring by the keystream thread in place of a buffer when it fails
+    private static final byte[] KEYSTREAM_FAILED = new byte[0];
+
     /**
      * Encrypts or decrypts a file using the RC4 algorithm.
      * @param fileName Path of the file
@@ -11,36 +34,11 @@ public class RC4 {
      */
     public static void crypt(String fileName, byte[] startingKey, boolean encrypt) {
         try {
-            // Read input bytes from file and initialize output array
-            byte[] input = Utilities.readFile(fileName);
-            byte[] output = new byte[input.length];
-
-            int i = 0, j = 0, plaintextIndex = 0;
-
-            // Initialize permutation of S. Starting key is no longer used after this point
-            byte[] S = RC4.initalize(startingKey);
-
-            // Stream Generation
-            while (plaintextIndex < input.length) {
-                i = (i + 1) % 256;
-                j = (j + Byte.toUnsignedInt(S[i])) % 256;
-
-                swap(S, i, j);
-
-                int t = (Byte.toUnsignedInt(S[i]) + Byte.toUnsignedInt(S[j])) % 256;
-                byte k = S[t];
-
-                // Encrypt / Decrypt using k XOR'd with plaintext
-                output[plaintextIndex] = (byte) (k ^ input[plaintextIndex++]);
-            }
-
-            // Write output to file
-            Utilities.writeFile(output, fileName, encrypt);
+            cryptFile(fileName, startingKey, encrypt);
         } catch (Exception e) {
             e.printStackTrace();
         }
 
-
         /* Implementation using Java API
         try {
             Cipher cipher = Cipher.getInstance("ARCFOUR");
@@ -48,10 +46,10 @@ public class RC4 {
 
             cipher.init(encrypt ? Cipher.ENCRYPT_MODE : Cipher.DECRYPT_MODE, key);
 
-            byte[] input = Utilities.readFile(fileName);
+            byte[] input = Files.readAllBytes(Paths.get(fileName));
             byte[] output = cipher.doFinal(input);
 
-            //Utilities.writeFile(output, fileName, encrypt);
+            //Files.write(Paths.get(fileName), output);
         } catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException |
                 IllegalBlockSizeException | BadPaddingException e) {
             e.printStackTrace();
@@ -59,12 +57,151 @@ public class RC4 {
         */
     }
 
+    /**
+     * Same as crypt, but a failure is thrown instead of printed. The original file is left as it was.
+     */
+    public static void cryptFile(String fileName, byte[] startingKey, boolean encrypt)
+            throws IOException, GeneralSecurityException {
+        try (FileTransform file = new FileTransform(fileName, encrypt, 0, BUFFER_SIZE)) {
+
+            // Initialize permutation of S. Starting key is no longer used after this point
+            RC4Engine engine = new RC4Engine(startingKey);
+
+            // Stream the file through the engine, which keeps its state between buffers
+            file.transform((in, out) -> {
+                int length = in.remaining();
+                engine.process(in.array(), in.position(), out.array(), out.position(), length);
+                out.position(out.position() + length);
+            }, 0);
+
+            file.finish();
+        }
+    }
+
+    /**
+     * Encrypts or decrypts a stream, e.g. standard input to standard output. The output is the same as crypt
+     * produces for a file, and is written one buffer at a time.
+     * @param in Plaintext or ciphertext
+     * @param out Receives the result
+     * @param startingKey Key used to encrypt the stream
+     */
+    public static void crypt(InputStream in, OutputStream out, byte[] startingKey) throws IOException {
+        RC4Engine engine = new RC4Engine(startingKey);
+        byte[] buffer = new byte[BUFFER_SIZE];
+
+        int length;
+        while ((length = in.read(buffer)) != -1) {
+            engine.process(buffer, 0, buffer, 0, length);
+            out.write(buffer, 0, length);
+        }
+        out.flush();
+    }
+
+    /**
+     * Same as crypt, but the keystream is generated on a separate thread into a ring of buffers while this
+     * thread reads input, XORs it with keystream that is already waiting and writes the output. The keystream
+     * only depends on the key, so generating it overlaps with disk I/O.
+     * @param fileName Path of the file
+     * @param startingKey Key used to encrypt the file
+     * @param encrypt Whether to encrypt or decrypt the file
+     */
+    public static void cryptPipelined(String fileName, byte[] startingKey, boolean encrypt) {
+        try {
+            cryptFilePipelined(fileName, startingKey, encrypt);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Same as cryptPipelined, but a failure is thrown instead of printed. The original file is left as it was.
+     */
+    public static void cryptFilePipelined(String fileName, byte[] startingKey, boolean encrypt)
+            throws IOException, InterruptedException {
+        Path source = Paths.get(fileName);
+        Path target = Paths.get(encrypt ?
+                Utilities.setEncryptedExtension(fileName)
+                :
+                Utilities.setNormalExtension(fileName));
+
+        Path temp = null;
+        Thread generator = null;
+        try {
+            temp = Utilities.createSiblingTempFile(target);
+
+            try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+                 FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+
+                long size = in.size();
+                RC4Engine engine = new RC4Engine(startingKey);
+
+                BlockingQueue<byte[]> free = new ArrayBlockingQueue<>(RING_SIZE);
+                BlockingQueue<byte[]> ready = new ArrayBlockingQueue<>(RING_SIZE);
+                for (int n = 0; n < RING_SIZE; n++) free.add(new byte[BUFFER_SIZE]);
+                AtomicReference<Throwable> failure = new AtomicReference<>();
+
+                // Keystream thread. Fills free buffers in order until the file length is covered.
+                generator = new Thread(() -> {
+                    try {
+                        for (long generated = 0; generated < size; generated += BUFFER_SIZE) {
+                            byte[] keystream = free.take();
+                            engine.keystream(keystream, 0, (int) Math.min(BUFFER_SIZE, size - generated));
+                            ready.put(keystream);
+                        }
+                    } catch (InterruptedException ignored) {
+                    } catch (Throwable e) {
+                        // The buffer being filled is held here, so the ring has room and this does not block
+                        failure.set(e);
+                        ready.offer(KEYSTREAM_FAILED);
+                    }
+                }, "RC4 keystream");
+                generator.setDaemon(true);
+                generator.start();
+
+                ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+                byte[] data = buffer.array();
+
+                for (long processed = 0; processed < size; processed += BUFFER_SIZE) {
+                    int length = (int) Math.min(BUFFER_SIZE, size - processed);
+                    buffer.clear().limit(length);
+                    if (Utilities.readFully(in, buffer, processed) != length)
+                        throw new EOFException(fileName + " changed size while reading");
+
+                    byte[] keystream = ready.take();
+                    if (keystream == KEYSTREAM_FAILED) rethrow(failure.get());
+
+                    // Simple enough for the JIT to vectorise
+                    for (int n = 0; n < length; n++)
+                        data[n] ^= keystream[n];
+                    free.put(keystream);
+
+                    buffer.flip();
+                    Utilities.writeFully(out, buffer, processed);
+                }
+            }
+
+            Utilities.commitFile(temp, target, source);
+        } finally {
+            if (generator != null) generator.interrupt();
+            if (temp != null) Utilities.deleteFile(temp.toString());
+        }
+    }
+
+    /**
+     * Rethrows a failure of the keystream thread on this thread
+     */
+    private static void rethrow(Throwable failure) {
+        if (failure instanceof Error) throw (Error) failure;
+        if (failure instanceof RuntimeException) throw (RuntimeException) failure;
+        throw new IllegalStateException("Keystream generation failed", failure);
+    }
+
     /**
      * Initializes the permutation of S using key
      * @param key Byte array of secret key
      * @return Permutation of S
      */
-    private static byte[] initalize(byte[] key) {
+    static byte[] initalize(byte[] key) {
         byte[] S = new byte[256];
         byte[] T = new byte[256];
 
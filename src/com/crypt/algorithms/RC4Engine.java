@@ -0,0 +1,108 @@
+package com.crypt.algorithms;
+
+import java.nio.ByteBuffer;
+
+/**
+ * RC4 keystream generator that keeps its state between calls, so a file can be processed
+ * a buffer at a time. Not thread-safe.
+ */
+public class RC4Engine {
+
+    private final int[] S = new int[256];
+    private int i = 0;
+    private int j = 0;
+
+    /**
+     * Creates an engine positioned at the start of the keystream for key
+     * @param key Byte array of secret key
+     */
+    public RC4Engine(byte[] key) {
+        byte[] initial = RC4.initalize(key);
+        for (int k = 0; k < 256; k++)
+            S[k] = initial[k] & 0xFF;
+    }
+
+    /**
+     * Encrypts or decrypts as many bytes as both buffers allow, advancing both positions.
+     * in and out may be the same buffer.
+     * @param in Bytes to process
+     * @param out Destination of the processed bytes
+     * @return Number of bytes processed
+     */
+    public int process(ByteBuffer in, ByteBuffer out) {
+        int length = Math.min(in.remaining(), out.remaining());
+
+        if (in.hasArray() && out.hasArray()) {
+            process(in.array(), in.arrayOffset() + in.position(), out.array(), out.arrayOffset() + out.position(),
+                    length);
+            in.position(in.position() + length);
+            out.position(out.position() + length);
+        } else {
+            for (int n = 0; n < length; n++)
+                out.put((byte) (in.get() ^ next()));
+        }
+
+        return length;
+    }
+
+    /**
+     * Encrypts or decrypts input[inOffset, inOffset + length) into output starting at outOffset.
+     * The ranges may be the same.
+     */
+    public void process(byte[] input, int inOffset, byte[] output, int outOffset, int length) {
+        // Local copies so the hot loop works on registers rather than fields
+        int[] S = this.S;
+        int i = this.i;
+        int j = this.j;
+
+        for (int n = 0; n < length; n++) {
+            i = (i + 1) & 0xFF;
+            int Si = S[i];
+            j = (j + Si) & 0xFF;
+            int Sj = S[j];
+            S[i] = Sj;
+            S[j] = Si;
+
+            output[outOffset + n] = (byte) (input[inOffset + n] ^ S[(Si + Sj) & 0xFF]);
+        }
+
+        this.i = i;
+        this.j = j;
+    }
+
+    /**
+     * Writes the next length bytes of keystream into output, without combining them with any data
+     */
+    public void keystream(byte[] output, int offset, int length) {
+        int[] S = this.S;
+        int i = this.i;
+        int j = this.j;
+
+        for (int n = 0; n < length; n++) {
+            i = (i + 1) & 0xFF;
+            int Si = S[i];
+            j = (j + Si) & 0xFF;
+            int Sj = S[j];
+            S[i] = Sj;
+            S[j] = Si;
+
+            output[offset + n] = (byte) S[(Si + Sj) & 0xFF];
+        }
+
+        this.i = i;
+        this.j = j;
+    }
+
+    /**
+     * @return Next byte of keystream
+     */
+    private int next() {
+        i = (i + 1) & 0xFF;
+        int Si = S[i];
+        j = (j + Si) & 0xFF;
+        int Sj = S[j];
+        S[i] = Sj;
+        S[j] = Si;
+        return S[(Si + Sj) & 0xFF];
+    }
+}
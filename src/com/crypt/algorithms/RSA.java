@@ -1,8 +1,11 @@
 package com.crypt.algorithms;
 
 import javax.crypto.*;
-import java.io.FileOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.security.*;
 import java.security.interfaces.RSAPrivateKey;
 import java.security.spec.InvalidKeySpecException;
@@ -14,51 +17,91 @@ import java.util.Base64;
 public class RSA {
     public static void crypt(String fileName, byte[] key, boolean encrypt) {
         try {
-            Cipher cipher = Cipher.getInstance("RSA/ECB/OAEPWithSHA-256AndMGF1Padding");
-            KeyFactory kf = KeyFactory.getInstance("RSA");
+            cryptFile(fileName, key, encrypt);
+        } catch (GeneralSecurityException | IOException e) {
+            e.printStackTrace();
+        }
+    }
 
-            if (encrypt) {
-                // Convert byte array to public key object
-                X509EncodedKeySpec publicKeySpec = new X509EncodedKeySpec(Base64.getDecoder().decode(key));
+    /**
+     * Same as crypt, but a failure is thrown instead of printed. The original file is left as it was.
+     */
+    public static void cryptFile(String fileName, byte[] key, boolean encrypt)
+            throws IOException, GeneralSecurityException {
+        Cipher cipher = Cipher.getInstance("RSA/ECB/OAEPWithSHA-256AndMGF1Padding");
+        KeyFactory kf = KeyFactory.getInstance("RSA");
 
-                cipher.init(Cipher.ENCRYPT_MODE, kf.generatePublic(publicKeySpec));
+        if (encrypt) {
+            // Convert byte array to public key object
+            X509EncodedKeySpec publicKeySpec = new X509EncodedKeySpec(Base64.getDecoder().decode(key));
 
-                KeyGenerator kg = KeyGenerator.getInstance("AES");
-                kg.init(256);
+            cipher.init(Cipher.ENCRYPT_MODE, kf.generatePublic(publicKeySpec));
 
-                SecretKey AESkey = kg.generateKey();
+            KeyGenerator kg = KeyGenerator.getInstance("AES");
+            kg.init(256);
 
-                AES.crypt(fileName, AESkey.getEncoded(), true);
+            SecretKey AESkey = kg.generateKey();
 
-                // Encrypt AES key and append it to the file
-                byte[] encryptedAES = cipher.doFinal(AESkey.getEncoded());
+            // Encrypt AES key before the file, so a bad public key leaves the file untouched
+            byte[] encryptedAES = cipher.doFinal(AESkey.getEncoded());
 
-                FileOutputStream fs = new FileOutputStream(fileName + Utilities.ENCRYPTED_EXTENSION, true);
-                fs.write(encryptedAES);
-                fs.close();
-            } else {
-                // Convert byte array to private key object
-                PKCS8EncodedKeySpec privateKeySpec = new PKCS8EncodedKeySpec(Base64.getDecoder().decode(key));
-                PrivateKey pk = kf.generatePrivate(privateKeySpec);
+            // The encrypted AES key is appended to the file before it replaces the original
+            AES.encrypt(fileName, AESkey.getEncoded(), encryptedAES);
+        } else {
+            // Convert byte array to private key object
+            PKCS8EncodedKeySpec privateKeySpec = new PKCS8EncodedKeySpec(Base64.getDecoder().decode(key));
+            PrivateKey pk = kf.generatePrivate(privateKeySpec);
 
-                cipher.init(Cipher.DECRYPT_MODE, pk);
+            cipher.init(Cipher.DECRYPT_MODE, pk);
 
-                // Grab AES key that was appended at the end of the file
-                byte[] encryptedAES = Utilities.readDataAtOffset(fileName,
-                        ((RSAPrivateKey) pk).getModulus().bitLength() / 8, 0, true);
+            // Grab AES key that was appended at the end of the file
+            byte[] encryptedAES = new byte[((RSAPrivateKey) pk).getModulus().bitLength() / 8];
+            try (RandomAccessFile file = new RandomAccessFile(fileName, "r")) {
+                if (file.length() < encryptedAES.length)
+                    throw new EOFException(fileName + " is missing its encrypted AES key");
+                file.seek(file.length() - encryptedAES.length);
+                file.readFully(encryptedAES);
+            }
 
-                // Decrypt AES key
-                byte[] decryptedAES = cipher.doFinal(encryptedAES);
+            // Decrypt AES key
+            byte[] decryptedAES = cipher.doFinal(encryptedAES);
 
-                // Truncate the AES key from the file
-                Utilities.truncateDataAtEOF(encryptedAES, fileName);
+            // Decrypt the file, leaving out the encrypted AES key
+            AES.decrypt(fileName, decryptedAES, encryptedAES.length);
+        }
+    }
 
-                // Decrypt the file
-                AES.crypt(fileName, decryptedAES, false);
-            }
-        } catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeySpecException |
-                InvalidKeyException | BadPaddingException | IllegalBlockSizeException | IOException e) {
-            e.printStackTrace();
+    /**
+     * Encrypts or decrypts a stream. The wrapped AES key comes first since a stream has no end to append it to,
+     * followed by the AES stream of the data.
+     * @param in Plaintext or ciphertext
+     * @param out Receives the result
+     * @param key Base64 public key to encrypt, or Base64 private key to decrypt
+     * @param encrypt Whether to encrypt or decrypt the stream
+     */
+    public static void crypt(InputStream in, OutputStream out, byte[] key, boolean encrypt)
+            throws IOException, GeneralSecurityException {
+        Cipher cipher = Cipher.getInstance("RSA/ECB/OAEPWithSHA-256AndMGF1Padding");
+        KeyFactory kf = KeyFactory.getInstance("RSA");
+
+        if (encrypt) {
+            cipher.init(Cipher.ENCRYPT_MODE, kf.generatePublic(new X509EncodedKeySpec(Base64.getDecoder().decode(key))));
+
+            KeyGenerator kg = KeyGenerator.getInstance("AES");
+            kg.init(256);
+            SecretKey AESkey = kg.generateKey();
+
+            out.write(cipher.doFinal(AESkey.getEncoded()));
+            AES.crypt(in, out, AESkey.getEncoded(), true);
+        } else {
+            PrivateKey pk = kf.generatePrivate(new PKCS8EncodedKeySpec(Base64.getDecoder().decode(key)));
+            cipher.init(Cipher.DECRYPT_MODE, pk);
+
+            byte[] encryptedAES = new byte[((RSAPrivateKey) pk).getModulus().bitLength() / 8];
+            if (Utilities.readFully(in, encryptedAES, 0, encryptedAES.length) != encryptedAES.length)
+                throw new IllegalBlockSizeException("Stream is missing its AES key");
+
+            AES.crypt(in, out, cipher.doFinal(encryptedAES), false);
         }
     }
 
@@ -1,6 +1,11 @@
 package com.crypt.algorithms;
 
 import java.io.*;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.*;
 import java.security.*;
 import java.util.List;
@@ -9,8 +14,8 @@ import java.util.*;
 public class Utilities {
     /*
         Methods to create:
-            Read file as bytes (String filename) returns bytearray[] - done
-            Write bytes as file (byte[]) returns nothing - done
+            Read file as bytes (String filename) returns bytearray[] - replaced by FileTransform
+            Write bytes as file (byte[]) returns nothing - replaced by FileTransform
             Check if file string is empty or null - done
             Rename extensions method(s)  encrypt and normal - done
         Error checking:
@@ -28,53 +33,14 @@ public class Utilities {
     //Max Path length in Windows
     private static final int MAX_PATH_LENGTH = 249;
 
-    // 2 GB = 2147483648 Bytes == Int.MAX_VAL - 1
-    // Set MAX to multiple of 128
-    private static final int MAX_FILE_SIZE = Integer.MAX_VALUE - 127;
-
     /**
      * @param byteLength - Ciphers require have different length of IV
      *                   For AES 128/192/256 Bit = 16/24/32 Bytes
      *                   For Blowfish = 8 Bytes
-     * @return - returns IV of byteLength
+     * @return - returns IV of byteLength, from this thread's NonceGenerator. Never blocks.
      */
     public static byte[] getIV(int byteLength) {
-        byte[] iv = new byte[byteLength];
-        byte[] seed = (new SecureRandom()).generateSeed(byteLength);
-
-        SecureRandom ivGenerator = new SecureRandom(seed);
-        ivGenerator.nextBytes(iv);
-        return iv;
-    }
-
-    /**
-     * @param filePathAndName - Name of file to be read in bytes
-     * @return - returns a byte array of the file
-     */
-    public static byte[] readFile(String filePathAndName) {
-        //Source:
-        // https://stackoverflow.com/questions/858980/file-to-byte-in-java
-
-        try {
-            //Debug statement
-            //System.out.println(Files.readAllBytes(Paths.get(filePathAndName)).toString());
-            long fileSize = Files.size(Paths.get(filePathAndName));
-
-            //If fileSize is greater than the max integer value...
-            if (fileSize > MAX_FILE_SIZE) {
-                byte[] buffer = new byte[MAX_FILE_SIZE];
-
-                try (BufferedInputStream in = new BufferedInputStream(new FileInputStream(filePathAndName))) {
-                    in.read(buffer, 0, MAX_FILE_SIZE);
-                }
-                return buffer;
-            }
-
-            return Files.readAllBytes(Paths.get(filePathAndName));
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        return null;
+        return NonceGenerator.next(byteLength);
     }
 
     /**
@@ -102,36 +68,6 @@ public class Utilities {
         return dataAtPosition;
     }
 
-    /**
-     * @param buffer          - Needs a byte array of a file
-     * @param filePathAndName - Name of the file to be written
-     * @param encryptFlag     - Is the file going encrypted (True) or decrypted? (False)
-     */
-    public static void writeFile(byte[] buffer, String filePathAndName, boolean encryptFlag) {
-
-        try {
-            long fileSize = Files.size(Paths.get(filePathAndName));
-
-            //To be re-written
-            if (fileSize > MAX_FILE_SIZE) {
-                //Source:
-                //https://stackoverflow.com/questions/181408/best-way-to-write-bytes-in-the-middle-of-a-file-in-java
-
-                RandomAccessFile hugeFile = new RandomAccessFile(new File(filePathAndName), "rw");
-                hugeFile.seek(0);
-                hugeFile.write(buffer);
-                hugeFile.close();
-            } else
-                Files.write(Paths.get(filePathAndName), buffer, StandardOpenOption.CREATE,
-                        StandardOpenOption.TRUNCATE_EXISTING);
-
-            setExtension(filePathAndName, encryptFlag);
-
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-    }
-
     /**
      * Writes data at either EOF or position chosen
      *
@@ -200,6 +136,140 @@ public class Utilities {
             System.out.println("Failed to move " + oldFile.getName() + " to " + newFile.getName());
     }
 
+    /**
+     * Creates an empty temporary file in the same folder as target, so the finished output can be
+     * moved over target without copying it across file systems
+     *
+     * @param target - The file that the temporary file will eventually replace
+     * @return - Path of the temporary file
+     */
+    public static Path createSiblingTempFile(Path target) throws IOException {
+        Path parent = target.toAbsolutePath().getParent();
+        return Files.createTempFile(parent, target.getFileName().toString(), ".tmp");
+    }
+
+    /**
+     * Moves a finished temporary file over target, then deletes the source it was produced from
+     *
+     * @param temp   - The finished output
+     * @param target - Final path of the output
+     * @param source - The original file, deleted once target is in place
+     */
+    public static void commitFile(Path temp, Path target, Path source) throws IOException {
+        // Temporary files are created owner-only, keep the permissions of the original file instead
+        try {
+            Files.setPosixFilePermissions(temp, Files.getPosixFilePermissions(source));
+        } catch (UnsupportedOperationException ignored) { }
+
+        try {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        if (!source.toAbsolutePath().equals(target.toAbsolutePath()))
+            Files.deleteIfExists(source);
+    }
+
+    /**
+     * Releases a mapping immediately instead of whenever the buffer is garbage collected, so mapping a large file
+     * window by window does not pile up address space. The buffer must not be used afterwards. If the JVM does not
+     * allow this, the mapping is left to the garbage collector.
+     *
+     * @param buffer - The mapping to release
+     */
+    public static void unmap(MappedByteBuffer buffer) {
+        try {
+            // Java 9 and later
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            invokeCleaner.invoke(theUnsafe.get(null), buffer);
+        } catch (NoSuchMethodException e) {
+            // Java 8
+            try {
+                Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(buffer);
+                if (cleaner != null) cleaner.getClass().getMethod("clean").invoke(cleaner);
+            } catch (ReflectiveOperationException | RuntimeException ignored) { }
+        } catch (ReflectiveOperationException | RuntimeException ignored) { }
+    }
+
+    /**
+     * Reads from the stream until length bytes have been read or the stream ends
+     *
+     * @param in     - Stream to read from
+     * @param buffer - Filled from offset
+     * @param offset - Index of the first byte to fill
+     * @param length - Number of bytes wanted
+     * @return - Number of bytes read
+     */
+    public static int readFully(InputStream in, byte[] buffer, int offset, int length) throws IOException {
+        int total = 0;
+        while (total < length) {
+            int read = in.read(buffer, offset + total, length - total);
+            if (read == -1) break;
+            total += read;
+        }
+        return total;
+    }
+
+    /**
+     * Checks whether a stream has ended without losing data. The byte read to check is pushed back.
+     *
+     * @param in - Stream to check
+     * @return - True if the stream has no more bytes
+     */
+    public static boolean atEnd(PushbackInputStream in) throws IOException {
+        int next = in.read();
+        if (next == -1) return true;
+        in.unread(next);
+        return false;
+    }
+
+    /**
+     * Reads from the channel at position until buffer is full or EOF is reached
+     *
+     * @param channel  - Channel to read from
+     * @param buffer   - Filled between its position and limit
+     * @param position - File offset of the first byte to read
+     * @return - Number of bytes read
+     */
+    public static int readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        int total = 0;
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + total);
+            if (read == -1) break;
+            total += read;
+        }
+        return total;
+    }
+
+    /**
+     * Writes every remaining byte of buffer to the channel at position, without moving the channel's position
+     *
+     * @param channel  - Channel to write to
+     * @param buffer   - Data between the buffer's position and limit
+     * @param position - File offset of the first byte to write
+     */
+    public static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining())
+            position += channel.write(buffer, position);
+    }
+
+    /**
+     * Writes every remaining byte of buffer to the channel at its current position
+     *
+     * @param channel - Channel to write to
+     * @param buffer  - Data between the buffer's position and limit
+     */
+    public static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+    }
+
     /**
      * @param filePathAndName - Deletes file
      */
@@ -280,31 +350,6 @@ public class Utilities {
         return new File[]{newTree};
     }
 
-    /**
-     * Recursive iteration and collecting of files,
-     * adds each file found to a list and passes it as a file array
-     *
-     * @param node - Starting point to check
-     * @return - Returns an array of File(s)
-     */
-    public static List<File> fileOrFolder(File node) {
-
-        System.out.println(node.getAbsoluteFile());
-        List<File> buffer = new ArrayList<>();
-
-        if (node.isDirectory()) {
-            String[] subNote = node.list();
-            for (String filename : subNote) {
-                File subItem = new File(node, filename);
-                fileOrFolder(subItem);
-                buffer.add(subItem);
-            }
-        } else
-            buffer.add(node);
-
-        return buffer;
-    }
-
     /**
      * Returns true if the specified algorithm is symmetric
      * @param algorithm
@@ -316,7 +361,8 @@ public class Utilities {
 
     public static void RSAKeyPairGenerator() throws NoSuchAlgorithmException, IOException {
         KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
-        keyGen.initialize(1048576);
+        // A 1048576-bit modulus would take days to generate
+        keyGen.initialize(2048);
         KeyPair pair = keyGen.generateKeyPair();
         privateKey = pair.getPrivate();
         publicKey = pair.getPublic();
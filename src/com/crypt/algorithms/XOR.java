@@ -1,6 +1,23 @@
 package com.crypt.algorithms;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+
 public class XOR {
+
+    // Bytes of the file XORed by a single fork-join task
+    private static final int CHUNK_SIZE = 4 << 20;
+
+    private static final ThreadLocal<byte[]> chunkBuffer = ThreadLocal.withInitial(() -> new byte[CHUNK_SIZE]);
+
     /* Methods to create:
     Use utilities error checking 1 + 2 to check if you have write permission and then proceed
     to create new file and construct with by the chunks
@@ -25,21 +42,156 @@ public class XOR {
      * @param flag            - {true = encrypt | false = decrypt}, used for encrypting file
      */
     public static void crypt(String filePathAndName, byte[] keyBytes, boolean flag) {
-        try {
+        ExpandedKey key = new ExpandedKey(keyBytes);
 
-            byte[] bytesToXOR = Utilities.readFile(filePathAndName);
-            byte[] xBytes = new byte[bytesToXOR.length];
+        try (FileTransform file = new FileTransform(filePathAndName, flag, 0)) {
 
             //v1:  Iterate through file bytes until i == filePathAndName.length - keyBytes.length
             //v2:  Iterate through file bytes i ^ xor[i mod length of key]
+            //v3:  XOR 8 bytes at a time against the key repeated to a word-sized period, in place
+            //v4:  Stream the file a buffer at a time, carrying the key position across buffers
 
-            for(int i = 0; i < bytesToXOR.length; i++)
-                xBytes[i] =  (byte)(bytesToXOR[i] ^ keyBytes[i % keyBytes.length]);
+            long[] offset = new long[1];
+            file.transform((in, out) -> {
+                key.apply(in.array(), in.position(), in.limit(), offset[0]);
+                offset[0] += in.remaining();
+                out.put(in);
+            }, 0);
 
-            Utilities.writeFile(xBytes, filePathAndName, flag);
+            file.finish();
 
-        } catch (NullPointerException e) {
+        } catch (IOException | GeneralSecurityException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Multi-threaded crypt. The file is split into chunks that are XORed on parallelism threads and written at
+     * the same offset. Each chunk starts at key byte (offset % key length), so the output is byte-identical to
+     * the single-threaded crypt.
+     * @param filePathAndName - Takes a folder and filename as input
+     * @param keyBytes        - Takes a key of any given size and encrypts/decrypts the file
+     * @param flag            - {true = encrypt | false = decrypt}, used for encrypting file
+     * @param parallelism     - Number of threads
+     */
+    public static void crypt(String filePathAndName, byte[] keyBytes, boolean flag, int parallelism) {
+        try {
+            cryptFile(filePathAndName, keyBytes, flag, parallelism);
+        } catch (IOException | GeneralSecurityException e) {
             e.printStackTrace();
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Same as the multi-threaded crypt, but a failure is thrown instead of printed. The original file is left
+     * as it was.
+     */
+    public static void cryptFile(String filePathAndName, byte[] keyBytes, boolean flag, int parallelism)
+            throws IOException, GeneralSecurityException {
+        Path source = Paths.get(filePathAndName);
+        Path target = Paths.get(flag ?
+                Utilities.setEncryptedExtension(filePathAndName)
+                :
+                Utilities.setNormalExtension(filePathAndName));
+
+        ExpandedKey key = new ExpandedKey(keyBytes);
+        Path temp = null;
+
+        try {
+            temp = Utilities.createSiblingTempFile(target);
+            try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+                 FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+
+                long size = in.size();
+                long chunks = (size + CHUNK_SIZE - 1) / CHUNK_SIZE;
+
+                ChunkTask.run(chunk -> {
+                    long offset = chunk * CHUNK_SIZE;
+                    int length = (int) Math.min(CHUNK_SIZE, size - offset);
+                    byte[] data = chunkBuffer.get();
+
+                    Utilities.readFully(in, ByteBuffer.wrap(data, 0, length), offset);
+                    key.apply(data, 0, length, offset);
+                    Utilities.writeFully(out, ByteBuffer.wrap(data, 0, length), offset);
+                }, 0, chunks, parallelism);
+            }
+
+            Utilities.commitFile(temp, target, source);
+
+        } finally {
+            if (temp != null) Utilities.deleteFile(temp.toString());
+        }
+    }
+
+    /**
+     * Encrypts or decrypts a stream, e.g. standard input to standard output. The output is the same as crypt
+     * produces for a file, and is written one buffer at a time.
+     * @param in       - Plaintext or ciphertext
+     * @param out      - Receives the result
+     * @param keyBytes - Takes a key of any given size and encrypts/decrypts the stream
+     */
+    public static void crypt(InputStream in, OutputStream out, byte[] keyBytes) throws IOException {
+        ExpandedKey key = new ExpandedKey(keyBytes);
+        byte[] data = chunkBuffer.get();
+        long offset = 0;
+
+        int length;
+        while ((length = in.read(data)) != -1) {
+            key.apply(data, 0, length, offset);
+            out.write(data, 0, length);
+            offset += length;
+        }
+        out.flush();
+    }
+
+    /**
+     * XORs data in place with the repeating key, starting at the first byte of the key
+     * @param data     - Bytes to encrypt/decrypt
+     * @param keyBytes - Key of any given size
+     */
+    public static void xor(byte[] data, byte[] keyBytes) {
+        new ExpandedKey(keyBytes).apply(data, 0, data.length, 0);
+    }
+
+    /**
+     * The key repeated until its period is at least one word long, plus one extra word so
+     * a word can be read from any position inside the period without wrapping.
+     */
+    static class ExpandedKey {
+
+        private final byte[] key;
+        private final int period;
+
+        ExpandedKey(byte[] keyBytes) {
+            int repeats = (Long.BYTES + keyBytes.length - 1) / keyBytes.length;
+            period = keyBytes.length * repeats;
+            key = new byte[period + Long.BYTES];
+
+            for (int i = 0; i < key.length; i++)
+                key[i] = keyBytes[i % keyBytes.length];
+        }
+
+        /**
+         * XORs data[from, to) in place
+         * @param fileOffset Offset of data[from] in the file, decides which key byte it lines up with
+         */
+        void apply(byte[] data, int from, int to, long fileOffset) {
+            // Byte order does not matter as long as both sides use the same one
+            ByteBuffer dataWords = ByteBuffer.wrap(data).order(ByteOrder.nativeOrder());
+            ByteBuffer keyWords = ByteBuffer.wrap(key).order(ByteOrder.nativeOrder());
+
+            int keyPos = (int) (fileOffset % period);
+            int i = from;
+
+            for (; i <= to - Long.BYTES; i += Long.BYTES) {
+                dataWords.putLong(i, dataWords.getLong(i) ^ keyWords.getLong(keyPos));
+                keyPos += Long.BYTES;
+                if (keyPos >= period) keyPos -= period;
+            }
+
+            // Fewer than 8 bytes left, the extra word at the end of key covers them
+            for (; i < to; i++)
+                data[i] ^= key[keyPos++];
+        }
+    }
+}
@@ -0,0 +1,430 @@
+package com.crypt;
+
+import com.crypt.algorithms.*;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Throughput benchmarks for the cipher implementations. Not part of the test suite, run manually:
+ * java com.crypt.CryptoBenchmark [benchmark] [size in MB, or thousands of files for WALK, or thousands of IVs for IV]
+ */
+public class CryptoBenchmark {
+
+    private static final String WORKING_DIRECTORY = System.getProperty("user.dir") + "/out/test/EECS3481Project/";
+    private static final byte[] KEY = "0123456789ABCDEF".getBytes();
+
+    public static void main(String[] args) throws IOException {
+        String benchmark = args.length > 0 ? args[0].toUpperCase() : "AES-CTR";
+        int sizeMB = args.length > 1 ? Integer.parseInt(args[1]) : 256;
+
+        switch (benchmark) {
+            case "AES-CTR":
+                aesCounterScaling(sizeMB);
+                break;
+            case "AES-SETUP":
+                aesSetupOverhead();
+                break;
+            case "XOR":
+                xorKernel(sizeMB);
+                break;
+            case "BLOWFISH":
+                blowfishBlocks(sizeMB);
+                break;
+            case "BLOWFISH-PIPELINE":
+                blowfishPipeline(sizeMB);
+                break;
+            case "CIPHERFILE":
+                cipherFileBuffering(sizeMB);
+                break;
+            case "CIPHERFILE-BACKEND":
+                cipherFileBackends(sizeMB);
+                break;
+            case "WALK":
+                walk(sizeMB);
+                break;
+            case "IV":
+                ivGeneration(sizeMB);
+                break;
+            default:
+                System.out.println("Unknown benchmark " + benchmark);
+        }
+    }
+
+    /**
+     * Compares the serial AES CBC path with AES CTR on 1 to N threads
+     */
+    private static void aesCounterScaling(int sizeMB) throws IOException {
+        File file = generateFile("aes_bench.bin", (long) sizeMB << 20);
+        int cores = Runtime.getRuntime().availableProcessors();
+
+        Runnable reset = () -> new File(file.getAbsolutePath() + Utilities.ENCRYPTED_EXTENSION).renameTo(file);
+
+        report("AES CBC", sizeMB, time(() -> AES.crypt(file.getAbsolutePath(), KEY, Utilities.ENCRYPT), reset));
+
+        for (int threads = 1; threads <= cores; threads *= 2) {
+            final int t = threads;
+            report("AES CTR x" + t, sizeMB, time(() ->
+                    AES.crypt(file.getAbsolutePath(), KEY, Utilities.ENCRYPT, AES.Mode.CTR, t), reset));
+        }
+
+        file.delete();
+    }
+
+    /**
+     * Per-file cipher setup cost in AES.crypt, before and after reusing the thread's Cipher and key spec,
+     * followed by the end to end cost of encrypting many small files
+     */
+    private static void aesSetupOverhead() throws IOException {
+        int iterations = 100_000;
+        byte[] iv = new byte[16];
+
+        reportPerOp("Setup: getInstance + key spec + init", iterations, time(() -> {
+            try {
+                for (int i = 0; i < iterations; i++) {
+                    Cipher aes = Cipher.getInstance("AES/CBC/NoPadding");
+                    aes.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(KEY, "AES"), new IvParameterSpec(iv));
+                }
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        }, () -> { }));
+
+        reportPerOp("Setup: reused cipher, init only", iterations, time(() -> {
+            try {
+                Cipher aes = Cipher.getInstance("AES/CBC/NoPadding");
+                SecretKeySpec keySpec = new SecretKeySpec(KEY, "AES");
+                for (int i = 0; i < iterations; i++)
+                    aes.init(Cipher.ENCRYPT_MODE, keySpec, new IvParameterSpec(iv));
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        }, () -> { }));
+
+        int files = 2000;
+        File[] small = new File[files];
+        for (int i = 0; i < files; i++) small[i] = generateFile("aes_small_" + i + ".bin", 4096);
+
+        reportPerOp("AES.crypt 4 KB files", files, time(() -> {
+            for (File f : small) AES.crypt(f.getAbsolutePath(), KEY, Utilities.ENCRYPT);
+        }, () -> {
+            for (File f : small) new File(f.getAbsolutePath() + Utilities.ENCRYPTED_EXTENSION).renameTo(f);
+        }));
+
+        for (File f : small) f.delete();
+    }
+
+    /**
+     * In-memory XOR throughput of the byte-at-a-time loop with a modulo per byte, the word-wide kernel
+     * and a plain memory copy, for a key length that does not divide the word size
+     */
+    private static void xorKernel(int sizeMB) {
+        byte[] data = new byte[sizeMB << 20];
+        byte[] copy = new byte[data.length];
+        byte[] key = "0123456789A".getBytes();
+        new Random().nextBytes(data);
+
+        report("XOR byte loop", sizeMB, time(() -> {
+            for (int i = 0; i < data.length; i++)
+                data[i] = (byte) (data[i] ^ key[i % key.length]);
+        }, () -> { }));
+
+        report("XOR word kernel", sizeMB, time(() -> XOR.xor(data, key), () -> { }));
+
+        report("System.arraycopy", sizeMB, time(() -> System.arraycopy(data, 0, copy, 0, data.length), () -> { }));
+    }
+
+    /**
+     * Blowfish ECB throughput of the per-block byte[] conversion the old BLOWFISH.encrypt(byte[]) did,
+     * against BlowfishEngine on long[] and on a direct ByteBuffer, none of which allocate per block
+     */
+    private static void blowfishBlocks(int sizeMB) {
+        BlowfishEngine engine = new BlowfishEngine(KEY);
+        byte[] data = new byte[sizeMB << 20];
+        new Random().nextBytes(data);
+
+        report("Blowfish byte[] per block", sizeMB, time(() -> {
+            byte[] block = new byte[BlowfishEngine.BLOCK_SIZE];
+            for (int i = 0; i < data.length; i += block.length) {
+                System.arraycopy(data, i, block, 0, block.length);
+                byte[] out = BLOWFISH.longToByteBlock(engine.encryptBlock(BLOWFISH.byteBlockToLong(block)));
+                System.arraycopy(out, 0, data, i, out.length);
+            }
+        }, () -> { }));
+
+        long[] blocks = new long[data.length / BlowfishEngine.BLOCK_SIZE];
+        ByteBuffer.wrap(data).asLongBuffer().get(blocks);
+        report("BlowfishEngine long[]", sizeMB, time(() -> engine.encrypt(blocks, 0, blocks.length), () -> { }));
+
+        ByteBuffer in = ByteBuffer.allocateDirect(data.length);
+        ByteBuffer out = ByteBuffer.allocateDirect(data.length);
+        in.put(data);
+        report("BlowfishEngine direct ByteBuffer", sizeMB, time(() -> {
+            in.clear();
+            out.clear();
+            engine.encrypt(in, out);
+        }, () -> { }));
+    }
+
+    /**
+     * Serial Blowfish CBC encryption and decryption against the same work through the asynchronous pipeline,
+     * where reads and writes overlap with the cipher
+     */
+    private static void blowfishPipeline(int sizeMB) throws IOException {
+        File file = generateFile("blowfish_pipeline_bench.bin", (long) sizeMB << 20);
+        String path = file.getAbsolutePath();
+        String encrypted = path + Utilities.ENCRYPTED_EXTENSION;
+
+        Runnable decrypt = () -> BLOWFISH.crypt(encrypted, KEY, Utilities.DECRYPT, BLOWFISH.Mode.CBC, null, 1);
+        Runnable encrypt = () -> BLOWFISH.crypt(path, KEY, Utilities.ENCRYPT, BLOWFISH.Mode.CBC, null, 1);
+
+        report("Blowfish CBC encrypt", sizeMB, time(encrypt, decrypt));
+        report("Blowfish CBC encrypt pipelined", sizeMB, time(() ->
+                BLOWFISH.cryptPipelined(path, KEY, Utilities.ENCRYPT, BLOWFISH.Mode.CBC, null), decrypt));
+
+        encrypt.run();
+        report("Blowfish CBC decrypt", sizeMB, time(decrypt, encrypt));
+        report("Blowfish CBC decrypt pipelined", sizeMB, time(() ->
+                BLOWFISH.cryptPipelined(encrypted, KEY, Utilities.DECRYPT, BLOWFISH.Mode.CBC, null), encrypt));
+    }
+
+    /**
+     * Block by block pass over a file through CipherFile, reading and rewriting every 8-byte block like Blowfish
+     * encryption does. A buffer of one block reads and writes each block separately, as CipherFile did before it
+     * was buffered. Counts the read and write syscalls of each pass from /proc/self/io (Linux only).
+     */
+    private static void cipherFileBuffering(int sizeMB) throws IOException {
+        File file = generateFile("cipherfile_bench.bin", (long) sizeMB << 20);
+        Runnable reset = () -> new File(file.getAbsolutePath() + Utilities.ENCRYPTED_EXTENSION).renameTo(file);
+
+        for (int bufferSize : new int[] {BlowfishEngine.BLOCK_SIZE, 64 << 10, CipherFile.DEFAULT_BUFFER_SIZE}) {
+            long[] before = syscalls();
+            long nanos = cipherFilePass(file, bufferSize, CipherFile.Backend.RANDOM_ACCESS);
+            long[] after = syscalls();
+            reset.run();
+
+            report("CipherFile buffer " + bufferSize + " B", sizeMB, nanos);
+            System.out.printf("%-40s %10d reads %10d writes%n", "", after[0] - before[0], after[1] - before[1]);
+        }
+    }
+
+    /**
+     * The same block by block pass on the RandomAccessFile backend and the memory-mapped backend. Sizes of
+     * 1024, 10240 and 51200 MB show how each backend holds up once the file no longer fits in the page cache.
+     */
+    private static void cipherFileBackends(int sizeMB) throws IOException {
+        File file = generateFile("cipherfile_backend_bench.bin", (long) sizeMB << 20);
+        Runnable reset = () -> new File(file.getAbsolutePath() + Utilities.ENCRYPTED_EXTENSION).renameTo(file);
+
+        for (CipherFile.Backend backend : CipherFile.Backend.values()) {
+            long nanos = cipherFilePass(file, CipherFile.DEFAULT_BUFFER_SIZE, backend);
+            reset.run();
+            report("CipherFile " + backend, sizeMB, nanos);
+        }
+
+        for (CipherFile.Backend backend : CipherFile.Backend.values()) {
+            long nanos = cipherFileTransformPass(file, backend);
+            reset.run();
+            report("CipherFile " + backend + " transform", sizeMB, nanos);
+        }
+    }
+
+    /**
+     * Blowfish CBC encrypts file through CipherFile.transform, as BLOWFISH.crypt does, then finishes the file
+     * @return Time taken in nanoseconds
+     */
+    private static long cipherFileTransformPass(File file, CipherFile.Backend backend) throws IOException {
+        long start = System.nanoTime();
+
+        try {
+            BlowfishEngine engine = new BlowfishEngine(KEY);
+            CipherFile cipherFile = new CipherFile(file.getAbsolutePath(), BlowfishEngine.BLOCK_SIZE,
+                    Utilities.ENCRYPT, CipherFile.DEFAULT_BUFFER_SIZE, backend);
+            long[] chain = {0};
+            cipherFile.transform(0, cipherFile.getLength(),
+                    (in, out) -> chain[0] = engine.encryptCBC(in, out, chain[0]));
+            cipherFile.finish();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Reads every 8-byte block of file through a CipherFile and writes it back, then finishes the file
+     * @return Time taken in nanoseconds
+     */
+    private static long cipherFilePass(File file, int bufferSize, CipherFile.Backend backend) throws IOException {
+        long start = System.nanoTime();
+
+        try {
+            CipherFile cipherFile = new CipherFile(file.getAbsolutePath(), BlowfishEngine.BLOCK_SIZE,
+                    Utilities.ENCRYPT, bufferSize, backend);
+            while (cipherFile.hasNext()) {
+                byte[] block = cipherFile.nextBlock(true);
+                cipherFile.writeDataAtOffset(block, cipherFile.getCurrentPos() - block.length, false);
+            }
+            cipherFile.finish();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Time until the first file is handed out by FileWalker, and until the last, compared with listing the
+     * whole tree up front as Main used to. The tree has 100 files per folder, 100 folders per folder.
+     */
+    private static void walk(int thousands) throws IOException {
+        Path tree = Paths.get(WORKING_DIRECTORY, "walk_bench_" + thousands + "k");
+        int files = thousands * 1000;
+        if (!Files.exists(tree)) {
+            for (int i = 0; i < files; i++) {
+                Path folder = tree.resolve(String.valueOf(i / 10000)).resolve(String.valueOf(i / 100 % 100));
+                if (i % 100 == 0) Files.createDirectories(folder);
+                Files.createFile(folder.resolve(i + ".txt"));
+            }
+        }
+
+        for (int run = 0; run < 3; run++) {
+            long start = System.nanoTime();
+            List<Path> all;
+            try (Stream<Path> paths = Files.walk(tree)) {
+                all = paths.filter(Files::isRegularFile).collect(Collectors.toList());
+            }
+            long listed = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            long first = -1;
+            int count = 0;
+            try (FileWalker walker = new FileWalker(tree).start()) {
+                while (walker.next() != null) {
+                    if (count++ == 0) first = System.nanoTime() - start;
+                }
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+            long walked = System.nanoTime() - start;
+
+            System.out.printf("%,d files: full listing %.1f ms | FileWalker first file %.2f ms, last %.1f ms%n",
+                    all.size() == count ? count : -1, listed / 1e6, first / 1e6, walked / 1e6);
+        }
+    }
+
+    /**
+     * Time to generate 16-byte IVs the way Utilities.getIV used to (two SecureRandoms and generateSeed per IV),
+     * with one SecureRandom shared by every thread, and with NonceGenerator, on 1 and N threads
+     */
+    private static void ivGeneration(int thousands) {
+        int count = thousands * 1000;
+        int cores = Runtime.getRuntime().availableProcessors();
+
+        reportIVs("generateSeed per IV", count, 1, () -> {
+            byte[] iv = new byte[16];
+            new SecureRandom(new SecureRandom().generateSeed(16)).nextBytes(iv);
+        });
+
+        SecureRandom shared = new SecureRandom();
+        for (int threads = 1; threads <= cores; threads *= 2)
+            reportIVs("Shared SecureRandom", count, threads, () -> shared.nextBytes(new byte[16]));
+
+        for (int threads = 1; threads <= cores; threads *= 2)
+            reportIVs("NonceGenerator", count, threads, () -> NonceGenerator.next(16));
+    }
+
+    private static void reportIVs(String name, int count, int threads, Runnable generate) {
+        Thread[] workers = new Thread[threads];
+        long start = System.nanoTime();
+
+        for (int t = 0; t < threads; t++) {
+            int share = count / threads + (t < count % threads ? 1 : 0);
+            workers[t] = new Thread(() -> {
+                for (int i = 0; i < share; i++) generate.run();
+            });
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        long nanos = System.nanoTime() - start;
+        System.out.printf("%-22s x%d: %,d IVs in %.1f ms (%.0f ns per IV)%n",
+                name, threads, count, nanos / 1e6, (double) nanos / count);
+    }
+
+    /**
+     * @return Read and write syscalls made by this process so far, or -1 where unavailable
+     */
+    private static long[] syscalls() {
+        long[] counts = {-1, -1};
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/self/io"))) {
+                if (line.startsWith("syscr:")) counts[0] = Long.parseLong(line.substring(6).trim());
+                if (line.startsWith("syscw:")) counts[1] = Long.parseLong(line.substring(6).trim());
+            }
+        } catch (IOException ignored) { }
+        return counts;
+    }
+
+    /**
+     * Warms up once, then returns the best of three timed runs
+     * @param run The operation being measured
+     * @param reset Restores the input after each run, not timed
+     */
+    private static long time(Runnable run, Runnable reset) {
+        run.run();
+        reset.run();
+
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < 3; i++) {
+            long start = System.nanoTime();
+            run.run();
+            best = Math.min(best, System.nanoTime() - start);
+            reset.run();
+        }
+        return best;
+    }
+
+    private static void report(String name, int sizeMB, long nanos) {
+        System.out.printf("%-40s %10.1f ms %10.1f MB/s%n", name, nanos / 1e6, sizeMB / (nanos / 1e9));
+    }
+
+    private static void reportPerOp(String name, long operations, long nanos) {
+        System.out.printf("%-40s %10.1f ms %10.2f us/op%n", name, nanos / 1e6, nanos / 1e3 / operations);
+    }
+
+    private static File generateFile(String name, long sizeBytes) throws IOException {
+        new File(WORKING_DIRECTORY).mkdirs();
+        File file = new File(WORKING_DIRECTORY + name);
+        byte[] block = new byte[(int) Math.min(1 << 20, sizeBytes)];
+        Random rand = new Random();
+
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            for (long written = 0; written < sizeBytes; written += block.length) {
+                rand.nextBytes(block);
+                out.write(block, 0, (int) Math.min(block.length, sizeBytes - written));
+            }
+        }
+        return file;
+    }
+}
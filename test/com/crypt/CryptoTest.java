@@ -2,19 +2,32 @@ package com.crypt;
 
 import java.io.*;
 
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 
 import java.security.*;
 
 import com.crypt.algorithms.*;
 
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
 import org.junit.jupiter.api.*;
 
 import static org.junit.jupiter.api.Assertions.*;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Base64;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
 
 public class CryptoTest {
 
@@ -98,6 +111,27 @@ public class CryptoTest {
         }
     }
 
+    /**
+     * Writes a file of pseudorandom bytes to the working directory
+     *
+     * @param name Name of the file
+     * @param size Size of the file in bytes
+     * @return SHA1 of the generated file
+     */
+    String GenerateFile(String name, int size) {
+        byte[] data = new byte[size];
+        new Random().nextBytes(data);
+
+        try {
+            Files.write(new File(WORKING_DIRECTORY + name).toPath(), data);
+            return ByteToHexString(MessageDigest.getInstance("SHA1").digest(data));
+        } catch (NoSuchAlgorithmException e) {
+            return fail("System does not support SHA1. Test can not be completed.");
+        } catch (IOException e) {
+            return fail("Failed to write generated file: " + name);
+        }
+    }
+
     /**
      * Copy test file from test resources directory to working directory
      */
@@ -178,6 +212,58 @@ public class CryptoTest {
         }
     }
 
+    /**
+     * Tests the word-wide XOR kernel against a byte-at-a-time XOR for key lengths around the word size
+     */
+    @Test
+    @DisplayName("XOR Kernel Test")
+    void XORKernelTest() {
+        Random rand = new Random();
+
+        for (int keyLength = 1; keyLength <= 20; keyLength++) {
+            for (int length = 0; length <= 70; length++) {
+                byte[] keyBytes = new byte[keyLength];
+                byte[] data = new byte[length];
+                rand.nextBytes(keyBytes);
+                rand.nextBytes(data);
+
+                byte[] expected = new byte[length];
+                for (int i = 0; i < length; i++)
+                    expected[i] = (byte) (data[i] ^ keyBytes[i % keyLength]);
+
+                XOR.xor(data, keyBytes);
+                assertArrayEquals(expected, data);
+            }
+        }
+    }
+
+    /**
+     * Tests that multi-threaded XOR produces the same bytes as single-threaded XOR on a file of several chunks
+     */
+    @Test
+    @DisplayName("Parallel XOR Test")
+    void XORParallelTest() {
+        File fileName = new File(WORKING_DIRECTORY + "xor_parallel.bin");
+        File encrypted = new File(fileName.getAbsolutePath() + Utilities.ENCRYPTED_EXTENSION);
+        String sha1 = GenerateFile(fileName.getName(), (9 << 20) + 3);
+        byte[] keyBytes = "0123456789A".getBytes();
+
+        try {
+            XOR.crypt(fileName.toString(), keyBytes, true);
+            byte[] serial = Files.readAllBytes(encrypted.toPath());
+            XOR.crypt(encrypted.toString(), keyBytes, false);
+            VerifySHA1(fileName, sha1, false);
+
+            XOR.crypt(fileName.toString(), keyBytes, true, 4);
+            assertArrayEquals(serial, Files.readAllBytes(encrypted.toPath()));
+
+            XOR.crypt(encrypted.toString(), keyBytes, false, 3);
+            VerifySHA1(fileName, sha1, false);
+        } catch (IOException e) {
+            fail("Failed to read encrypted file");
+        }
+    }
+
     /**
      * Tests the RC4 encryption and decryption algorithm
      */
@@ -208,6 +294,63 @@ public class CryptoTest {
         }
     }
 
+    /**
+     * Tests that pipelined RC4 produces the same output as RC4 on a single thread
+     */
+    @Test
+    @DisplayName("Pipelined RC4 Test")
+    void RC4PipelinedTest() {
+        File fileName = new File(WORKING_DIRECTORY + "rc4_pipeline.bin");
+        File encrypted = new File(fileName.getAbsolutePath() + Utilities.ENCRYPTED_EXTENSION);
+        String sha1 = GenerateFile(fileName.getName(), (5 << 20) + 9);
+
+        try {
+            RC4.crypt(fileName.toString(), key.getBytes(), true);
+            byte[] serial = Files.readAllBytes(encrypted.toPath());
+
+            RC4.cryptPipelined(encrypted.toString(), key.getBytes(), false);
+            VerifySHA1(fileName, sha1, false);
+
+            RC4.cryptPipelined(fileName.toString(), key.getBytes(), true);
+            assertArrayEquals(serial, Files.readAllBytes(encrypted.toPath()));
+        } catch (IOException e) {
+            fail("Failed to read encrypted file");
+        }
+    }
+
+    /**
+     * Tests RC4Engine against a published test vector, and that processing in pieces matches one call
+     */
+    @Test
+    @DisplayName("RC4 Engine Test")
+    void RC4EngineTest() {
+        byte[] plaintext = "Plaintext".getBytes(StandardCharsets.US_ASCII);
+        ByteBuffer out = ByteBuffer.allocate(plaintext.length);
+        new RC4Engine("Key".getBytes(StandardCharsets.US_ASCII)).process(ByteBuffer.wrap(plaintext), out);
+        assertEquals("bbf316e8d940af0ad3", ByteToHexString(out.array()));
+
+        byte[] data = new byte[100_000];
+        new Random().nextBytes(data);
+
+        byte[] whole = new byte[data.length];
+        new RC4Engine(key.getBytes()).process(data, 0, whole, 0, data.length);
+
+        RC4Engine engine = new RC4Engine(key.getBytes());
+        ByteBuffer in = ByteBuffer.wrap(data);
+        ByteBuffer pieces = ByteBuffer.allocateDirect(data.length);
+        Random rand = new Random();
+        while (in.hasRemaining()) {
+            ByteBuffer slice = in.slice();
+            slice.limit(Math.min(slice.remaining(), rand.nextInt(5000)));
+            in.position(in.position() + engine.process(slice, pieces));
+        }
+
+        byte[] result = new byte[data.length];
+        pieces.flip();
+        pieces.get(result);
+        assertArrayEquals(whole, result);
+    }
+
     /**
      * Tests the AES encryption and decryption algorithm
      */
@@ -239,6 +382,343 @@ public class CryptoTest {
         }
     }
 
+    /**
+     * Tests that AES streams files spanning several buffers whose size is not a multiple of the block size
+     */
+    @Test
+    @DisplayName("AES Streaming Large File Test")
+    void AESStreamTest() {
+        File fileName = new File(WORKING_DIRECTORY + "aes_stream.bin");
+        String sha1 = GenerateFile(fileName.getName(), (3 << 20) + 5);
+
+        AES.crypt(fileName.toString(), key.getBytes(StandardCharsets.UTF_8), Utilities.ENCRYPT);
+
+        File encrypted = new File(fileName.getAbsolutePath() + Utilities.ENCRYPTED_EXTENSION);
+        assertEquals((3 << 20) + 16 + 1 + 16, encrypted.length());
+        VerifySHA1(encrypted, sha1, true);
+
+        AES.crypt(encrypted.toString(), key.getBytes(StandardCharsets.UTF_8), Utilities.DECRYPT);
+
+        VerifySHA1(fileName, sha1, false);
+    }
+
+    /**
+     * Tests that parallel CBC decryption restores the same file as the serial path
+     */
+    @Test
+    @DisplayName("AES Parallel CBC Decryption Test")
+    void AESParallelDecryptTest() {
+        File fileName = new File(WORKING_DIRECTORY + "aes_parallel.bin");
+        File encrypted = new File(fileName.getAbsolutePath() + Utilities.ENCRYPTED_EXTENSION);
+        String sha1 = GenerateFile(fileName.getName(), (9 << 20) + 7);
+
+        try {
+            AES.crypt(fileName.toString(), key.getBytes(), true);
+            byte[] cipherText = Files.readAllBytes(encrypted.toPath());
+
+            AES.crypt(encrypted.toString(), key.getBytes(), false, AES.Mode.CBC, 1);
+            VerifySHA1(fileName, sha1, false);
+
+            Files.write(encrypted.toPath(), cipherText);
+            AES.crypt(encrypted.toString(), key.getBytes(), false, AES.Mode.CBC, 4);
+            VerifySHA1(fileName, sha1, false);
+        } catch (IOException e) {
+            fail("Failed to read encrypted file");
+        }
+    }
+
+    /**
+     * Tests AES in counter mode, including a file spanning several parallel chunks that is encrypted
+     * on several threads and decrypted on one
+     */
+    @Test
+    @DisplayName("AES CTR Encryption and Decryption Test")
+    void AESCTRTest() {
+        for (int i = 0; i < testFiles.length; i++) {
+            File fileName = new File(WORKING_DIRECTORY + testFiles[i].getName());
+
+            AES.crypt(fileName.toString(), key.getBytes(StandardCharsets.UTF_8), Utilities.ENCRYPT, AES.Mode.CTR);
+
+            File encrypted = new File(fileName.getAbsolutePath() + Utilities.ENCRYPTED_EXTENSION);
+            assertEquals(testFiles[i].length() + 16, encrypted.length());
+            VerifySHA1(encrypted, sha1s[i], true);
+
+            AES.crypt(encrypted.toString(), key.getBytes(StandardCharsets.UTF_8), Utilities.DECRYPT, AES.Mode.CTR);
+
+            VerifySHA1(fileName, sha1s[i], false);
+        }
+
+        File fileName = new File(WORKING_DIRECTORY + "aes_ctr.bin");
+        String sha1 = GenerateFile(fileName.getName(), (9 << 20) + 7);
+
+        AES.crypt(fileName.toString(), key.getBytes(StandardCharsets.UTF_8), Utilities.ENCRYPT, AES.Mode.CTR, 4);
+        VerifySHA1(new File(fileName.getAbsolutePath() + Utilities.ENCRYPTED_EXTENSION), sha1, true);
+
+        AES.crypt(fileName.toString() + Utilities.ENCRYPTED_EXTENSION, key.getBytes(StandardCharsets.UTF_8),
+                Utilities.DECRYPT, AES.Mode.CTR, 1);
+        VerifySHA1(fileName, sha1, false);
+    }
+
+    /**
+     * Tests segmented AES GCM, and that a tampered segment is reported by index and blocks decryption
+     */
+    @Test
+    @DisplayName("AES GCM Encryption, Verification and Decryption Test")
+    void AESGCMTest() {
+        for (int i = 0; i < testFiles.length; i++) {
+            File fileName = new File(WORKING_DIRECTORY + testFiles[i].getName());
+
+            AES.crypt(fileName.toString(), key.getBytes(StandardCharsets.UTF_8), Utilities.ENCRYPT, AES.Mode.GCM);
+
+            File encrypted = new File(fileName.getAbsolutePath() + Utilities.ENCRYPTED_EXTENSION);
+            VerifySHA1(encrypted, sha1s[i], true);
+            assertEquals(0, AES.verify(encrypted.toString(), key.getBytes(StandardCharsets.UTF_8)).size());
+
+            AES.crypt(encrypted.toString(), key.getBytes(StandardCharsets.UTF_8), Utilities.DECRYPT, AES.Mode.GCM);
+
+            VerifySHA1(fileName, sha1s[i], false);
+        }
+
+        File fileName = new File(WORKING_DIRECTORY + "aes_gcm.bin");
+        String sha1 = GenerateFile(fileName.getName(), (3 << 20) + 11);
+        File encrypted = new File(fileName.getAbsolutePath() + Utilities.ENCRYPTED_EXTENSION);
+
+        AES.crypt(fileName.toString(), key.getBytes(StandardCharsets.UTF_8), Utilities.ENCRYPT, AES.Mode.GCM);
+
+        // Flip a byte inside the third segment
+        try (RandomAccessFile raf = new RandomAccessFile(encrypted, "rw")) {
+            long offset = 2L * ((1 << 20) + 28) + 100;
+            raf.seek(offset);
+            int b = raf.read();
+            raf.seek(offset);
+            raf.write(b ^ 1);
+        } catch (IOException e) {
+            fail("Failed to modify encrypted file");
+        }
+
+        assertEquals(Collections.singletonList(2L), AES.verify(encrypted.toString(),
+                key.getBytes(StandardCharsets.UTF_8)));
+
+        AES.crypt(encrypted.toString(), key.getBytes(StandardCharsets.UTF_8), Utilities.DECRYPT, AES.Mode.GCM);
+        assertTrue(encrypted.exists());
+        assertFalse(fileName.exists());
+    }
+
+    /**
+     * Tests in-place AES, and that its output is interchangeable with the copying implementation
+     */
+    @Test
+    @DisplayName("AES In-Place Encryption and Decryption Test")
+    void AESInPlaceTest() {
+        for (AES.Mode mode : new AES.Mode[] {AES.Mode.CBC, AES.Mode.CTR}) {
+            for (int i = 0; i < testFiles.length; i++) {
+                File fileName = new File(WORKING_DIRECTORY + testFiles[i].getName());
+                File encrypted = new File(fileName.getAbsolutePath() + Utilities.ENCRYPTED_EXTENSION);
+
+                AES.cryptInPlace(fileName.toString(), key.getBytes(StandardCharsets.UTF_8), Utilities.ENCRYPT, mode);
+                VerifySHA1(encrypted, sha1s[i], true);
+
+                AES.crypt(encrypted.toString(), key.getBytes(StandardCharsets.UTF_8), Utilities.DECRYPT, mode);
+                VerifySHA1(fileName, sha1s[i], false);
+
+                AES.crypt(fileName.toString(), key.getBytes(StandardCharsets.UTF_8), Utilities.ENCRYPT, mode);
+                AES.cryptInPlace(encrypted.toString(), key.getBytes(StandardCharsets.UTF_8), Utilities.DECRYPT, mode);
+                VerifySHA1(fileName, sha1s[i], false);
+            }
+        }
+    }
+
+    /**
+     * Tests point reads through AESReadChannel against the plaintext for both CTR and GCM files
+     */
+    @Test
+    @DisplayName("AES Random Access Read Test")
+    void AESReadChannelTest() {
+        File fileName = new File(WORKING_DIRECTORY + "aes_seek.bin");
+        File encrypted = new File(fileName.getAbsolutePath() + Utilities.ENCRYPTED_EXTENSION);
+        long[] positions = {0, 5, 4095, (1 << 20) - 3, (2 << 20) + 17, (3 << 20) + 11 - 100};
+
+        for (AES.Mode mode : new AES.Mode[] {AES.Mode.CTR, AES.Mode.GCM}) {
+            GenerateFile(fileName.getName(), (3 << 20) + 11);
+
+            try {
+                byte[] plain = Files.readAllBytes(fileName.toPath());
+                AES.crypt(fileName.toString(), key.getBytes(StandardCharsets.UTF_8), Utilities.ENCRYPT, mode);
+
+                try (AESReadChannel channel = new AESReadChannel(encrypted.toString(),
+                        key.getBytes(StandardCharsets.UTF_8), mode)) {
+                    assertEquals(plain.length, channel.size());
+
+                    for (long position : positions) {
+                        ByteBuffer buffer = ByteBuffer.allocate(4096);
+                        channel.position(position);
+                        while (buffer.hasRemaining() && channel.read(buffer) != -1);
+
+                        int length = (int) Math.min(4096, plain.length - position);
+                        assertEquals(length, buffer.position());
+                        assertArrayEquals(Arrays.copyOfRange(plain, (int) position, (int) position + length),
+                                Arrays.copyOf(buffer.array(), length));
+                    }
+                }
+            } catch (IOException | GeneralSecurityException e) {
+                e.printStackTrace();
+                fail("Failed to read encrypted file in " + mode + " mode");
+            }
+        }
+    }
+
+    /**
+     * Tests that CipherFile reads back its own writes, keeps the bytes it never wrote, and leaves no temporary
+     * file behind, with each backend
+     */
+    @Test
+    @DisplayName("CipherFile Test")
+    void CipherFileTest() {
+        File fileName = new File(WORKING_DIRECTORY + "cipherfile.bin");
+        File encrypted = new File(fileName.getAbsolutePath() + Utilities.ENCRYPTED_EXTENSION);
+
+        for (CipherFile.Backend backend : CipherFile.Backend.values()) {
+            GenerateFile(fileName.getName(), (3 << 20) + 5);
+
+            try {
+                byte[] expected = Files.readAllBytes(fileName.toPath());
+                byte[] block = "ABCDEFGH".getBytes();
+
+                CipherFile file = new CipherFile(fileName.toString(), 8, true, 4096, backend);
+                file.pad();
+                file.writeDataAtOffset(block, 1 << 20, false);
+                assertArrayEquals(block, file.readDataAtOffset(1 << 20, false, 8));
+
+                // The last block is the tail of the original file followed by the padding
+                byte[] last = file.readDataAtOffset(8, true, 8);
+                assertArrayEquals(new byte[] {expected[expected.length - 5], expected[expected.length - 4],
+                        expected[expected.length - 3], expected[expected.length - 2], expected[expected.length - 1],
+                        3, 3, 3}, last);
+                assertTrue(file.finish());
+
+                System.arraycopy(block, 0, expected, 1 << 20, block.length);
+                expected = Arrays.copyOf(expected, expected.length + 3);
+                Arrays.fill(expected, expected.length - 3, expected.length, (byte) 3);
+
+                assertArrayEquals(expected, Files.readAllBytes(encrypted.toPath()));
+                assertFalse(fileName.exists());
+
+                File[] leftovers = new File(WORKING_DIRECTORY).listFiles((dir, name) ->
+                        name.startsWith(encrypted.getName()) && name.endsWith(".tmp"));
+                assertEquals(0, leftovers == null ? 0 : leftovers.length);
+            } catch (IOException | GeneralSecurityException e) {
+                e.printStackTrace();
+                fail("CipherFile failed");
+            }
+        }
+    }
+
+    /**
+     * Tests that Blowfish encryption gives the same output as the Java API on each CipherFile backend, selected
+     * through the system property. The file is not a multiple of the block size, so the last block is partly
+     * original data and partly padding.
+     */
+    @Test
+    @DisplayName("CipherFile Backend Test")
+    void CipherFileBackendTest() {
+        File fileName = new File(WORKING_DIRECTORY + "cipherfile_backend.bin");
+        File encrypted = new File(fileName.getAbsolutePath() + Utilities.ENCRYPTED_EXTENSION);
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        byte[] IV = Utilities.getIV(8);
+
+        try {
+            for (CipherFile.Backend backend : CipherFile.Backend.values()) {
+                GenerateFile(fileName.getName(), (3 << 20) + 5);
+                byte[] data = Files.readAllBytes(fileName.toPath());
+
+                Cipher cbc = Cipher.getInstance("Blowfish/CBC/PKCS5Padding");
+                cbc.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(keyBytes, "Blowfish"), new IvParameterSpec(IV));
+                byte[] cipherText = cbc.doFinal(data);
+                byte[] expected = Arrays.copyOf(cipherText, cipherText.length + IV.length);
+                System.arraycopy(IV, 0, expected, cipherText.length, IV.length);
+
+                System.setProperty(CipherFile.Backend.PROPERTY, backend.name());
+                BLOWFISH.crypt(fileName.toString(), keyBytes, Utilities.ENCRYPT, BLOWFISH.Mode.CBC, IV, 1);
+                assertArrayEquals(expected, Files.readAllBytes(encrypted.toPath()));
+
+                BLOWFISH.crypt(encrypted.toString(), keyBytes, Utilities.DECRYPT, BLOWFISH.Mode.CBC, IV, 1);
+                assertArrayEquals(data, Files.readAllBytes(fileName.toPath()));
+            }
+        } catch (IOException | GeneralSecurityException e) {
+            e.printStackTrace();
+            fail("CipherFile backend failed");
+        } finally {
+            System.clearProperty(CipherFile.Backend.PROPERTY);
+        }
+    }
+
+    /**
+     * Tests that FileTransform streams everything but the trailer through the transform, and that a failed
+     * transform leaves the original file alone
+     */
+    @Test
+    @DisplayName("FileTransform Test")
+    void FileTransformTest() {
+        File fileName = new File(WORKING_DIRECTORY + "filetransform.bin");
+        File encrypted = new File(fileName.getAbsolutePath() + Utilities.ENCRYPTED_EXTENSION);
+        String sha1 = GenerateFile(fileName.getName(), (3 << 20) + 7);
+
+        try {
+            byte[] original = Files.readAllBytes(fileName.toPath());
+
+            // Buffers that do not divide the file, with output lagging a byte behind the input
+            try (FileTransform file = new FileTransform(fileName.toString(), true, 5, 1000)) {
+                assertEquals(original.length - 5, file.length());
+                byte[] trailer = file.trailer();
+
+                byte[] held = new byte[1];
+                boolean[] holding = new boolean[1];
+                file.write("HEAD".getBytes());
+                file.transform(new FileTransform.Transform() {
+                    @Override
+                    public void update(ByteBuffer in, ByteBuffer out) {
+                        if (holding[0]) out.put(held[0]);
+                        out.put(in.array(), in.position(), in.remaining() - 1);
+                        held[0] = in.get(in.limit() - 1);
+                        holding[0] = true;
+                    }
+
+                    @Override
+                    public void finish(ByteBuffer out) {
+                        if (holding[0]) out.put(held[0]);
+                    }
+                }, 1);
+                file.write(trailer);
+                file.finish();
+            }
+
+            byte[] expected = new byte[original.length + 4];
+            System.arraycopy("HEAD".getBytes(), 0, expected, 0, 4);
+            System.arraycopy(original, 0, expected, 4, original.length);
+            assertArrayEquals(expected, Files.readAllBytes(encrypted.toPath()));
+            assertFalse(fileName.exists());
+
+            // Not finished, so nothing changes
+            try (FileTransform file = new FileTransform(encrypted.toString(), false, 0)) {
+                assertThrows(GeneralSecurityException.class, () -> file.transform((in, out) -> {
+                    throw new GeneralSecurityException("Failed on purpose");
+                }, 0));
+            }
+            assertArrayEquals(expected, Files.readAllBytes(encrypted.toPath()));
+            assertFalse(fileName.exists());
+
+            File[] leftovers = new File(WORKING_DIRECTORY).listFiles((dir, name) ->
+                    name.startsWith(fileName.getName()) && name.endsWith(".tmp"));
+            assertEquals(0, leftovers == null ? 0 : leftovers.length);
+
+            Files.write(fileName.toPath(), original);
+            VerifySHA1(fileName, sha1, false);
+        } catch (IOException | GeneralSecurityException e) {
+            e.printStackTrace();
+            fail("FileTransform failed");
+        }
+    }
+
     /**
      * Tests the Blowfish encryption and decryption algorithm and compares to Java API's encryption hash
      */
@@ -316,6 +796,412 @@ public class CryptoTest {
         }
     }
 
+    /**
+     * Tests BlowfishEngine's long[] and ByteBuffer paths against the Java API's Blowfish in ECB and CBC
+     */
+    @Test
+    @DisplayName("Blowfish Engine Test")
+    void BlowfishEngineTest() {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        byte[] IV = Utilities.getIV(8);
+        byte[] data = new byte[8 * 1000];
+        new Random().nextBytes(data);
+
+        BlowfishEngine engine = new BlowfishEngine(keyBytes);
+        long iv = BLOWFISH.byteBlockToLong(IV);
+
+        try {
+            SecretKeySpec keySpec = new SecretKeySpec(keyBytes, "Blowfish");
+            Cipher ecb = Cipher.getInstance("Blowfish/ECB/NoPadding");
+            Cipher cbc = Cipher.getInstance("Blowfish/CBC/NoPadding");
+            ecb.init(Cipher.ENCRYPT_MODE, keySpec);
+            cbc.init(Cipher.ENCRYPT_MODE, keySpec, new IvParameterSpec(IV));
+
+            byte[] ecbExpected = ecb.doFinal(data);
+            byte[] cbcExpected = cbc.doFinal(data);
+
+            // long[] path
+            long[] blocks = new long[data.length / 8];
+            ByteBuffer.wrap(data).asLongBuffer().get(blocks);
+            engine.encrypt(blocks, 0, blocks.length);
+            ByteBuffer result = ByteBuffer.allocate(data.length);
+            result.asLongBuffer().put(blocks);
+            assertArrayEquals(ecbExpected, result.array());
+
+            engine.decrypt(blocks, 0, blocks.length);
+            long chain = engine.encryptCBC(blocks, 0, 500, iv);
+            engine.encryptCBC(blocks, 500, blocks.length, chain);
+            result.asLongBuffer().put(blocks);
+            assertArrayEquals(cbcExpected, result.array());
+
+            // Direct ByteBuffer path, split in two calls to carry the CBC chain
+            ByteBuffer in = ByteBuffer.allocateDirect(data.length);
+            in.put(data).flip();
+            ByteBuffer out = ByteBuffer.allocateDirect(data.length);
+            in.limit(4000);
+            long last = engine.encryptCBC(in, out, iv);
+            in.limit(data.length);
+            engine.encryptCBC(in, out, last);
+
+            byte[] outBytes = new byte[data.length];
+            out.flip();
+            out.get(outBytes);
+            assertArrayEquals(cbcExpected, outBytes);
+
+            ByteBuffer plain = ByteBuffer.allocate(data.length);
+            engine.decryptCBC(ByteBuffer.wrap(outBytes), plain, iv);
+            assertArrayEquals(data, plain.array());
+        } catch (GeneralSecurityException e) {
+            e.printStackTrace();
+            fail("Java API Blowfish is not available");
+        }
+    }
+
+    /**
+     * Tests that parallel Blowfish decryption and ECB encryption give the same output as the serial path
+     */
+    @Test
+    @DisplayName("Blowfish Parallel Test")
+    void BlowfishParallelTest() {
+        File fileName = new File(WORKING_DIRECTORY + "blowfish_parallel.bin");
+        File encrypted = new File(fileName.getAbsolutePath() + Utilities.ENCRYPTED_EXTENSION);
+        String sha1 = GenerateFile(fileName.getName(), (4 << 20) + 13);
+
+        try {
+            BLOWFISH.crypt(fileName.toString(), key.getBytes(), true, BLOWFISH.Mode.CBC, null, 1);
+            BLOWFISH.crypt(encrypted.toString(), key.getBytes(), false, BLOWFISH.Mode.CBC, null, 4);
+            VerifySHA1(fileName, sha1, false);
+
+            BLOWFISH.crypt(fileName.toString(), key.getBytes(), true, BLOWFISH.Mode.ECB, null, 1);
+            byte[] serial = Files.readAllBytes(encrypted.toPath());
+            BLOWFISH.crypt(encrypted.toString(), key.getBytes(), false, BLOWFISH.Mode.ECB, null, 4);
+            VerifySHA1(fileName, sha1, false);
+
+            // The appended IV is random and unused by ECB, so only the ciphertext before it is compared
+            BLOWFISH.crypt(fileName.toString(), key.getBytes(), true, BLOWFISH.Mode.ECB, null, 4);
+            byte[] parallel = Files.readAllBytes(encrypted.toPath());
+            assertEquals(serial.length, parallel.length);
+            assertArrayEquals(Arrays.copyOf(serial, serial.length - 8), Arrays.copyOf(parallel, parallel.length - 8));
+
+            BLOWFISH.crypt(encrypted.toString(), key.getBytes(), false, BLOWFISH.Mode.ECB, null, 1);
+            VerifySHA1(fileName, sha1, false);
+        } catch (IOException e) {
+            fail("Failed to read encrypted file");
+        }
+    }
+
+    /**
+     * Tests Blowfish counter mode against the Java API, on one and several threads
+     */
+    @Test
+    @DisplayName("Blowfish CTR Encryption and Decryption Test")
+    void BlowfishCTRTest() {
+        File fileName = new File(WORKING_DIRECTORY + "blowfish_ctr.bin");
+        File encrypted = new File(fileName.getAbsolutePath() + Utilities.ENCRYPTED_EXTENSION);
+        String sha1 = GenerateFile(fileName.getName(), (9 << 20) + 5);
+        byte[] IV = Utilities.getIV(8);
+
+        try {
+            byte[] plainText = Files.readAllBytes(fileName.toPath());
+
+            Cipher blowfish = Cipher.getInstance("Blowfish/CTR/NoPadding");
+            blowfish.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key.getBytes(), "Blowfish"), new IvParameterSpec(IV));
+            byte[] expected = blowfish.doFinal(plainText);
+
+            BLOWFISH.crypt(fileName.toString(), key.getBytes(), true, BLOWFISH.Mode.CTR, IV, 1);
+            byte[] serial = Files.readAllBytes(encrypted.toPath());
+            assertArrayEquals(expected, Arrays.copyOf(serial, plainText.length));
+            assertArrayEquals(IV, Arrays.copyOfRange(serial, plainText.length, serial.length));
+
+            BLOWFISH.crypt(encrypted.toString(), key.getBytes(), false, BLOWFISH.Mode.CTR, null, 4);
+            VerifySHA1(fileName, sha1, false);
+
+            BLOWFISH.crypt(fileName.toString(), key.getBytes(), true, BLOWFISH.Mode.CTR, IV, 4);
+            assertArrayEquals(serial, Files.readAllBytes(encrypted.toPath()));
+
+            BLOWFISH.crypt(encrypted.toString(), key.getBytes(), false, BLOWFISH.Mode.CTR, null, 1);
+            VerifySHA1(fileName, sha1, false);
+        } catch (IOException | GeneralSecurityException e) {
+            e.printStackTrace();
+            fail("Blowfish CTR failed");
+        }
+    }
+
+    /**
+     * Tests that the asynchronous Blowfish pipeline gives the same output as crypt
+     */
+    @Test
+    @DisplayName("Pipelined Blowfish Test")
+    void BlowfishPipelinedTest() {
+        File fileName = new File(WORKING_DIRECTORY + "blowfish_pipelined.bin");
+        File encrypted = new File(fileName.getAbsolutePath() + Utilities.ENCRYPTED_EXTENSION);
+        String sha1 = GenerateFile(fileName.getName(), (5 << 20) + 3);
+        byte[] IV = Utilities.getIV(8);
+
+        try {
+            BLOWFISH.crypt(fileName.toString(), key.getBytes(), true, BLOWFISH.Mode.CBC, IV, 1);
+            byte[] serial = Files.readAllBytes(encrypted.toPath());
+            BLOWFISH.cryptPipelined(encrypted.toString(), key.getBytes(), false, BLOWFISH.Mode.CBC, null);
+            VerifySHA1(fileName, sha1, false);
+
+            BLOWFISH.cryptPipelined(fileName.toString(), key.getBytes(), true, BLOWFISH.Mode.CBC, IV);
+            assertArrayEquals(serial, Files.readAllBytes(encrypted.toPath()));
+            BLOWFISH.crypt(encrypted.toString(), key.getBytes(), false, BLOWFISH.Mode.CBC, null, 1);
+            VerifySHA1(fileName, sha1, false);
+
+            BLOWFISH.cryptPipelined(fileName.toString(), key.getBytes(), true, BLOWFISH.Mode.ECB, null);
+            BLOWFISH.cryptPipelined(encrypted.toString(), key.getBytes(), false, BLOWFISH.Mode.ECB, null);
+            VerifySHA1(fileName, sha1, false);
+        } catch (IOException e) {
+            fail("Failed to read encrypted file");
+        }
+    }
+
+    /**
+     * Tests that Blowfish uses the right schedule when different keys are used at the same time,
+     * by comparing against the Java API's encryption of the same files
+     */
+    @Test
+    @DisplayName("Blowfish Multiple Keys Test")
+    void BlowfishKeysTest() {
+        byte[] IV = Utilities.getIV(8);
+        String[] keys = {"KEY-ONE-0123", "KEY-TWO-4567", "KEY-THREE-89"};
+
+        assertSame(BlowfishKey.of(keys[0].getBytes()), BlowfishKey.of(keys[0].getBytes()));
+
+        Thread[] threads = new Thread[keys.length];
+        String[] errors = new String[keys.length];
+
+        for (int t = 0; t < keys.length; t++) {
+            final int n = t;
+            threads[t] = new Thread(() -> {
+                File ours = new File(WORKING_DIRECTORY + "blowfish_key_" + n + ".bin");
+                File api = new File(WORKING_DIRECTORY + "blowfish_key_api_" + n + ".bin");
+                byte[] keyBytes = keys[n].getBytes();
+
+                try {
+                    byte[] data = Files.readAllBytes(testFiles[n].toPath());
+                    Files.write(ours.toPath(), data);
+                    Files.write(api.toPath(), data);
+
+                    BLOWFISH.crypt(ours.toString(), keyBytes, Utilities.ENCRYPT, BLOWFISH.Mode.CBC, IV);
+                    BLOWFISH.cryptAPI(api.toString(), keyBytes, Utilities.ENCRYPT, IV);
+
+                    if (!Arrays.equals(Files.readAllBytes(new File(ours + Utilities.ENCRYPTED_EXTENSION).toPath()),
+                            Files.readAllBytes(new File(api + Utilities.ENCRYPTED_EXTENSION).toPath())))
+                        errors[n] = "Encryption with key " + n + " differs from the Java API";
+
+                    BLOWFISH.crypt(ours + Utilities.ENCRYPTED_EXTENSION, keyBytes, Utilities.DECRYPT,
+                            BLOWFISH.Mode.CBC, null);
+
+                    if (!Arrays.equals(data, Files.readAllBytes(ours.toPath())))
+                        errors[n] = "Decryption with key " + n + " did not restore the file";
+                } catch (IOException e) {
+                    errors[n] = e.toString();
+                }
+            });
+            threads[t].start();
+        }
+
+        for (int t = 0; t < keys.length; t++) {
+            try {
+                threads[t].join();
+            } catch (InterruptedException e) {
+                fail("Interrupted");
+            }
+            assertNull(errors[t], errors[t]);
+        }
+    }
+
+    /**
+     * Encrypts and decrypts in memory streams with every algorithm, on lengths around the buffer
+     * and segment boundaries
+     */
+    @Test
+    @DisplayName("Streaming Test")
+    void StreamTest() {
+        KeyPair rsaPair = RSA.generateRSAPair(2048);
+        KeyPair aPair = ECC.generateECCPair();
+        KeyPair bPair = ECC.generateECCPair();
+        if (rsaPair == null || aPair == null || bPair == null) fail();
+
+        byte[] rsaPrivate = Base64.getEncoder().encode(rsaPair.getPrivate().getEncoded());
+        byte[] rsaPublic = Base64.getEncoder().encode(rsaPair.getPublic().getEncoded());
+        byte[] aPrivate = Base64.getEncoder().encode(aPair.getPrivate().getEncoded());
+        byte[] aPublic = Base64.getEncoder().encode(aPair.getPublic().getEncoded());
+        byte[] bPrivate = Base64.getEncoder().encode(bPair.getPrivate().getEncoded());
+        byte[] bPublic = Base64.getEncoder().encode(bPair.getPublic().getEncoded());
+
+        Random random = new Random(20);
+        for (int length : new int[] {0, 1, 8, 1000, 1 << 20, (2 << 20) + 5}) {
+            byte[] data = new byte[length];
+            random.nextBytes(data);
+
+            try {
+                assertArrayEquals(data, streamRoundTrip(data, (in, out, enc) -> XOR.crypt(in, out, key.getBytes())));
+                assertArrayEquals(data, streamRoundTrip(data, (in, out, enc) -> RC4.crypt(in, out, key.getBytes())));
+                assertArrayEquals(data, streamRoundTrip(data, (in, out, enc) -> AES.crypt(in, out, key.getBytes(), enc)));
+                for (BLOWFISH.Mode mode : BLOWFISH.Mode.values())
+                    assertArrayEquals(data, streamRoundTrip(data, (in, out, enc) ->
+                            BLOWFISH.crypt(in, out, key.getBytes(), enc, mode)));
+                assertArrayEquals(data, streamRoundTrip(data, (in, out, enc) ->
+                        RSA.crypt(in, out, enc ? rsaPublic : rsaPrivate, enc)));
+                assertArrayEquals(data, streamRoundTrip(data, (in, out, enc) ->
+                        ECC.crypt(in, out, enc ? aPrivate : bPrivate, enc ? bPublic : aPublic, enc)));
+            } catch (Exception e) {
+                e.printStackTrace();
+                fail("Failed to stream " + length + " bytes");
+            }
+        }
+
+        // XOR and RC4 streams match their files
+        File fileName = new File(WORKING_DIRECTORY + testFiles[0].getName());
+        File encrypted = new File(fileName.getAbsolutePath() + Utilities.ENCRYPTED_EXTENSION);
+        try {
+            byte[] plaintext = Files.readAllBytes(fileName.toPath());
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            RC4.crypt(new ByteArrayInputStream(plaintext), out, key.getBytes());
+            RC4.crypt(fileName.toString(), key.getBytes(), true);
+            assertArrayEquals(Files.readAllBytes(encrypted.toPath()), out.toByteArray());
+            RC4.crypt(encrypted.toString(), key.getBytes(), false);
+
+            out.reset();
+            XOR.crypt(new ByteArrayInputStream(plaintext), out, key.getBytes());
+            XOR.crypt(fileName.toString(), key.getBytes(), true);
+            assertArrayEquals(Files.readAllBytes(encrypted.toPath()), out.toByteArray());
+            XOR.crypt(encrypted.toString(), key.getBytes(), false);
+        } catch (IOException e) {
+            fail("Failed to read " + fileName);
+        }
+        VerifySHA1(fileName, sha1s[0], false);
+
+        // A truncated AES stream fails, whether a whole segment or part of one is missing
+        byte[] data = new byte[(2 << 20) + 5];
+        random.nextBytes(data);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            AES.crypt(new ByteArrayInputStream(data), out, key.getBytes(), true);
+            byte[] ciphertext = out.toByteArray();
+
+            for (int cut : new int[] {1, 5 + 28, (1 << 20) + 28 + 5 + 28}) {
+                byte[] truncated = Arrays.copyOf(ciphertext, ciphertext.length - cut);
+                assertThrows(GeneralSecurityException.class, () -> AES.crypt(new ByteArrayInputStream(truncated),
+                        new ByteArrayOutputStream(), key.getBytes(), false));
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail("Failed to encrypt stream");
+        }
+    }
+
+    private interface StreamCipher {
+        void crypt(InputStream in, OutputStream out, boolean encrypt) throws Exception;
+    }
+
+    /**
+     * Encrypts then decrypts data with a stream cipher
+     * @return The decrypted data
+     */
+    private byte[] streamRoundTrip(byte[] data, StreamCipher cipher) throws Exception {
+        ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+        cipher.crypt(new ByteArrayInputStream(data), encrypted, true);
+
+        ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
+        cipher.crypt(new ByteArrayInputStream(encrypted.toByteArray()), decrypted, false);
+        return decrypted.toByteArray();
+    }
+
+    /**
+     * Tests that FileWalker finds nested files, applies the exclusion and symbolic link policies, and never hands
+     * out files written next to the ones it already handed out
+     */
+    @Test
+    @DisplayName("File Walker Test")
+    void FileWalkerTest() {
+        Path tree = new File(WORKING_DIRECTORY + "walker").toPath();
+
+        try {
+            if (Files.exists(tree))
+                Files.walk(tree).sorted(Collections.reverseOrder()).forEach(p -> p.toFile().delete());
+
+            Files.createDirectories(tree.resolve("a/b/c"));
+            Files.createDirectories(tree.resolve("skip"));
+            for (String name : new String[] {"top.txt", "a/one.txt", "a/b/two.txt", "a/b/c/three.txt",
+                    "a/ignore.log", "skip/hidden.txt"})
+                Files.write(tree.resolve(name), name.getBytes());
+
+            boolean links = true;
+            try {
+                Files.createSymbolicLink(tree.resolve("a/link.txt"), tree.resolve("top.txt"));
+                Files.createSymbolicLink(tree.resolve("a/b/c/loop"), tree.resolve("a"));
+            } catch (UnsupportedOperationException | IOException e) {
+                links = false;
+            }
+
+            List<String> excludes = Arrays.asList("*.log", "skip");
+            List<String> found = new ArrayList<>();
+            try (FileWalker walker = new FileWalker(tree, FileWalker.Symlinks.SKIP, excludes, 2).start()) {
+                File f;
+                while ((f = walker.next()) != null) {
+                    found.add(tree.relativize(f.toPath()).toString().replace(File.separatorChar, '/'));
+                    // Written the way the ciphers write their output, while the walk is still going
+                    Files.write(f.toPath().resolveSibling(f.getName() + Utilities.ENCRYPTED_EXTENSION), new byte[0]);
+                }
+            }
+            Collections.sort(found);
+            assertEquals(Arrays.asList("a/b/c/three.txt", "a/b/two.txt", "a/one.txt", "top.txt"), found);
+
+            if (links) {
+                found.clear();
+                excludes = Arrays.asList("*.log", "skip", "*" + Utilities.ENCRYPTED_EXTENSION);
+                try (FileWalker walker = new FileWalker(tree, FileWalker.Symlinks.FOLLOW, excludes, 2).start()) {
+                    File f;
+                    while ((f = walker.next()) != null) found.add(f.getName());
+                }
+                // The link to top.txt is either one found second, and the loop back to a is not entered
+                Collections.sort(found);
+                assertEquals(Arrays.asList("one.txt", "three.txt", "top.txt", "two.txt"), found);
+            }
+
+            try (FileWalker walker = new FileWalker(tree.resolve("missing")).start()) {
+                assertThrows(IOException.class, walker::next);
+            }
+        } catch (IOException | InterruptedException e) {
+            e.printStackTrace();
+            fail("Failed to walk " + tree);
+        }
+    }
+
+    /**
+     * Tests that IVs from NonceGenerator have the requested length and do not repeat, on several threads and
+     * across a reseed
+     */
+    @Test
+    @DisplayName("Nonce Generator Test")
+    void NonceGeneratorTest() {
+        assertEquals(8, Utilities.getIV(8).length);
+        assertEquals(16, NonceGenerator.next(16).length);
+
+        Set<ByteBuffer> nonces = Collections.synchronizedSet(new HashSet<>());
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                // 12-byte nonces, more than a reseed interval's worth
+                for (int i = 0; i < 100000; i++) nonces.add(ByteBuffer.wrap(NonceGenerator.next(12)));
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                fail("Interrupted");
+            }
+        }
+
+        assertEquals(threads.length * 100000, nonces.size());
+    }
+
     /**
      * Runs the XOR algorithm using Main to simulate command line usage
      */
@@ -341,6 +1227,36 @@ public class CryptoTest {
         }
     }
 
+    /**
+     * Encrypts and decrypts a folder with several files at a time, and checks the summary
+     */
+    @Test
+    @DisplayName("Concurrent Command Line Test")
+    void CommandLineJobsTest() {
+        File folder = new File(WORKING_DIRECTORY + "jobs");
+        if (folder.exists())
+            for (File f : folder.listFiles()) f.delete();
+        folder.mkdirs();
+
+        String[] sha1s = new String[12];
+        for (int i = 0; i < sha1s.length; i++)
+            sha1s[i] = GenerateFile("jobs/" + i + ".bin", (i << 16) + i);
+
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        PrintStream stdout = System.out;
+        System.setOut(new PrintStream(os));
+        try {
+            Main.main(new String[] {"-encrypt", "-i", folder.getAbsolutePath(), "-xor", key, "-f", "-jobs", "4"});
+            Main.main(new String[] {"-decrypt", "-i", folder.getAbsolutePath(), "-xor", key, "-f", "-jobs", "auto"});
+        } finally {
+            System.setOut(stdout);
+        }
+
+        assertTrue(os.toString().contains("12 of 12 files were successfully encrypted on 4 jobs, 0 failed."));
+        for (int i = 0; i < sha1s.length; i++)
+            VerifySHA1(new File(folder, i + ".bin"), sha1s[i], false);
+    }
+
     @Test
     @DisplayName("ECC Key Pair Generation Test")
     void CommandLineTest2() {
@@ -355,6 +1271,56 @@ public class CryptoTest {
                 Main.main(new String[] {"-generate", "RSA"}));
     }
 
+    @Test
+    @DisplayName("Bulk Key Pair Generation Test")
+    void CommandLineTest5() {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        PrintStream stdout = System.out;
+        System.setOut(new PrintStream(os));
+        try {
+            Main.main(new String[] {"-generate", "ECC", "-count", "5"});
+        } finally {
+            System.setOut(stdout);
+        }
+
+        String[] lines = os.toString().split("\\R");
+        Set<String> privateKeys = new HashSet<>();
+        for (int i = 0; i < lines.length; i++)
+            if (lines[i].startsWith("Private Key")) privateKeys.add(lines[i + 1]);
+
+        assertTrue(os.toString().contains("(5 of 5)"));
+        assertEquals(5, privateKeys.size());
+    }
+
+    /**
+     * Tests that KeyPairPool fills up in the background, never hands out a pair twice, and still returns a pair
+     * when it is empty
+     */
+    @Test
+    @DisplayName("Key Pair Pool Test")
+    void KeyPairPoolTest() {
+        try (KeyPairPool pool = new KeyPairPool("EC", 256, 4, 2)) {
+            for (int i = 0; i < 100 && pool.available() < 4; i++) Thread.sleep(50);
+            assertEquals(4, pool.available());
+
+            Set<ByteBuffer> keys = new HashSet<>();
+            for (int i = 0; i < 10; i++)
+                keys.add(ByteBuffer.wrap(pool.take().getPrivate().getEncoded()));
+            assertEquals(10, keys.size());
+
+            List<KeyPair> pairs = new ArrayList<>();
+            KeyPairPool.generate("RSA", 1024, 6, 3, pairs::add);
+            assertEquals(6, pairs.size());
+            for (KeyPair pair : pairs)
+                assertTrue(keys.add(ByteBuffer.wrap(pair.getPrivate().getEncoded())));
+        } catch (GeneralSecurityException | InterruptedException | ExecutionException e) {
+            e.printStackTrace();
+            fail("Failed to generate key pairs");
+        }
+
+        assertThrows(NoSuchAlgorithmException.class, () -> new KeyPairPool("NONE", 256, 1, 1));
+    }
+
     @Test
     @DisplayName("ECC Command Line Test")
     void CommandLineTest4() {